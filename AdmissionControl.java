@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionControl protects the chat server from running out of threads and file descriptors when
+ * too many connections or requests arrive. Connections are counted against a global limit and a
+ * limit per source IP address, and checked as soon as they are accepted, before anything is read or
+ * deserialized from them. Joins and file requests from each IP address are rate limited with a
+ * {@link TokenBucket}, first by their combined rate before the request is deserialized, then by the rate
+ * of their own type once it is known. Rejections are counted, and the counts are logged every minute
+ * they change.
+ *
+ * @see TokenBucket
+ * @see ChatServer
+ */
+public class AdmissionControl {
+
+    /** A burst may use this many seconds' worth of a rate limit at once. */
+    private static final int BURST_SECONDS = 10;
+    /** Full token buckets are forgotten once there are this many, so idle addresses don't pile up. */
+    private static final int BUCKET_SWEEP_THRESHOLD = 1024;
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final double joinsPerSecond;
+    private final double fileRequestsPerSecond;
+
+    /** Open connections per source address, every access must synchronize on the map. */
+    private final HashMap<InetAddress, Integer> connectionsByAddress = new HashMap<>();
+    private int connections = 0;
+    private final HashMap<InetAddress, TokenBucket> requestBuckets = new HashMap<>();
+    private final HashMap<InetAddress, TokenBucket> joinBuckets = new HashMap<>();
+    private final HashMap<InetAddress, TokenBucket> fileRequestBuckets = new HashMap<>();
+
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong rejectedAddressConnections = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong rejectedJoins = new AtomicLong();
+    private final AtomicLong rejectedFileRequests = new AtomicLong();
+    private String lastReport = "";
+
+    /**
+     * Creates an AdmissionControl and starts logging its rejection counts.
+     *
+     * @param maxConnections the most connections open at once.
+     * @param maxConnectionsPerAddress the most connections open at once from one IP address.
+     * @param joinsPerSecond the sustained rate of join requests allowed from one IP address.
+     * @param fileRequestsPerSecond the sustained rate of file requests allowed from one IP address.
+     */
+    public AdmissionControl(int maxConnections, int maxConnectionsPerAddress,
+                            double joinsPerSecond, double fileRequestsPerSecond) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.joinsPerSecond = joinsPerSecond;
+        this.fileRequestsPerSecond = fileRequestsPerSecond;
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admission-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create a server socket whose accepted sockets give back their connection slot when they are
+     * closed, however and wherever that happens.
+     *
+     * @param port the port to listen on.
+     * @return the server socket.
+     * @throws IOException if the socket cannot be bound.
+     */
+    public ServerSocket openServerSocket(int port) throws IOException {
+        return new ServerSocket(port) {
+            @Override
+            public Socket accept() throws IOException {
+                AdmittedSocket socket = new AdmittedSocket();
+                implAccept(socket);
+                return socket;
+            }
+        };
+    }
+
+    /**
+     * Check a newly accepted connection against the connection limits. An admitted connection holds its
+     * slot until the socket is closed, a rejected connection should be closed right away.
+     *
+     * @param socket a socket accepted from {@link #openServerSocket}.
+     * @return true if the connection is admitted.
+     */
+    public boolean admitConnection(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        synchronized (connectionsByAddress) {
+            if (connections >= maxConnections) {
+                rejectedConnections.incrementAndGet();
+                return false;
+            }
+            int addressConnections = connectionsByAddress.getOrDefault(address, 0);
+            if (addressConnections >= maxConnectionsPerAddress) {
+                rejectedAddressConnections.incrementAndGet();
+                return false;
+            }
+            connections++;
+            connectionsByAddress.put(address, addressConnections + 1);
+        }
+        if (socket instanceof AdmittedSocket) { ((AdmittedSocket) socket).admitted(this, address); }
+        return true;
+    }
+
+    /**
+     * Take a token for a request of any type from the address, before the request is read. Its rate is the
+     * join and file request rates combined, so an address within both limits is never turned away here.
+     *
+     * @return true if the request may be read, false if the address is sending requests too often.
+     */
+    public boolean admitRequest(InetAddress address) {
+        if (acquire(requestBuckets, address, joinsPerSecond + fileRequestsPerSecond)) { return true; }
+        rejectedRequests.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Take a token for a join request from the address.
+     *
+     * @return true if the join is allowed, false if the address is joining too often.
+     */
+    public boolean admitJoin(InetAddress address) {
+        if (acquire(joinBuckets, address, joinsPerSecond)) { return true; }
+        rejectedJoins.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Take a token for a file request from the address, over a separate connection or the chat connection.
+     *
+     * @return true if the file request is allowed, false if the address is requesting files too often.
+     */
+    public boolean admitFileRequest(InetAddress address) {
+        if (acquire(fileRequestBuckets, address, fileRequestsPerSecond)) { return true; }
+        rejectedFileRequests.incrementAndGet();
+        return false;
+    }
+
+    /** @return a summary of the open connections and rejection counts. */
+    public String summary() {
+        int open;
+        synchronized (connectionsByAddress) {
+            open = connections;
+        }
+        return "Admission: " + open + " open connections, rejected " + rejectedConnections.get()
+                + " over the connection limit, " + rejectedAddressConnections.get() + " over the per address limit, "
+                + rejectedRequests.get() + " unread requests, " + rejectedJoins.get() + " joins and "
+                + rejectedFileRequests.get() + " file requests over the rate limits";
+    }
+
+    /** Give back the connection slot of a closed socket. */
+    private void release(InetAddress address) {
+        synchronized (connectionsByAddress) {
+            connections--;
+            int addressConnections = connectionsByAddress.getOrDefault(address, 0) - 1;
+            if (addressConnections > 0) {
+                connectionsByAddress.put(address, addressConnections);
+            } else {
+                connectionsByAddress.remove(address);
+            }
+        }
+    }
+
+    /** Take a token from the address's bucket, creating a full bucket for a new address. */
+    private boolean acquire(HashMap<InetAddress, TokenBucket> buckets, InetAddress address, double tokensPerSecond) {
+        TokenBucket bucket;
+        synchronized (buckets) {
+            if (buckets.size() >= BUCKET_SWEEP_THRESHOLD) { // Forget addresses that haven't been limited lately:
+                Iterator<TokenBucket> iterator = buckets.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().isFull()) { iterator.remove(); }
+                }
+            }
+            bucket = buckets.computeIfAbsent(address,
+                    key -> new TokenBucket(Math.max(1, tokensPerSecond * BURST_SECONDS), tokensPerSecond));
+        }
+        return bucket.tryAcquire();
+    }
+
+    /** Log the counts if anything changed since the last report. */
+    private void report() {
+        String report = summary();
+        if (!report.equals(lastReport)) {
+            ChatServer.log.info(report);
+            lastReport = report;
+        }
+    }
+
+    /** A socket that gives back its connection slot the first time it is closed. */
+    private static class AdmittedSocket extends Socket {
+        private AdmissionControl admissionControl;
+        private InetAddress address;
+
+        synchronized void admitted(AdmissionControl admissionControl, InetAddress address) {
+            this.admissionControl = admissionControl;
+            this.address = address;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                AdmissionControl owner;
+                synchronized (this) {
+                    owner = admissionControl;
+                    admissionControl = null; // Only give back the slot once.
+                }
+                if (owner != null) { owner.release(address); }
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The BlockSignatures class defines a serializable summary of a requester's existing copy of a file,
+ * so the owner can send only what changed. The file is split into fixed size blocks, and each block
+ * gets a cheap rolling weak checksum and a strong MD5 hash. The owner slides the weak checksum over
+ * its copy of the file one byte at a time to find blocks the requester already has, and only checks
+ * the strong hash when the weak checksum matches.
+ *
+ * @see FileDelta
+ */
+public class BlockSignatures implements java.io.Serializable {
+
+    /** Length of the strong hash of each block in bytes. */
+    public static final int STRONG_HASH_LENGTH = 16;
+    private static final int MIN_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    /** The most blocks signatures may have, which covers files of up to 128GB. */
+    public static final int MAX_BLOCK_COUNT = 1024 * 1024;
+    /** Arrays are grown as blocks are read, so a bogus block count can't force a large allocation up front. */
+    private static final int INITIAL_READ_CAPACITY = 1024;
+
+    /** The size of every block except possibly the last one. */
+    public final int blockSize;
+    /** The size of the requester's copy of the file. */
+    public final long fileSize;
+    /** The weak rolling checksum of each block. */
+    public final int[] weakChecksums;
+    /** The strong hash of each block, {@link #STRONG_HASH_LENGTH} bytes each. */
+    public final byte[][] strongHashes;
+
+    public BlockSignatures(int blockSize, long fileSize, int[] weakChecksums, byte[][] strongHashes) {
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.weakChecksums = weakChecksums;
+        this.strongHashes = strongHashes;
+    }
+
+    /** @return the number of blocks. */
+    public int blockCount() {
+        return weakChecksums.length;
+    }
+
+    /**
+     * Check signatures that arrived as an object against what {@link #compute} would produce, the same checks
+     * {@link #readOptional} makes, so invalid signatures from one client are never passed on to another.
+     *
+     * @return true if the block size, block count, and every hash have the sizes {@link #compute} gives them.
+     */
+    public boolean isValid() {
+        if (weakChecksums == null || strongHashes == null || weakChecksums.length != strongHashes.length
+                || !validSizes(blockSize, fileSize, weakChecksums.length)) {
+            return false;
+        }
+        for (byte[] strongHash : strongHashes) {
+            if (strongHash == null || strongHash.length != STRONG_HASH_LENGTH) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Compute the block signatures of a local file. The block size grows with the square root of the
+     * file size, which keeps both the signatures and the literal data for a changed block small.
+     *
+     * @param file the local file, open for reading, its position is moved.
+     * @return the block signatures of the file, or null if the file is too large to send signatures for.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static BlockSignatures compute(RandomAccessFile file) throws IOException {
+        long fileSize = file.length();
+        int blockSize = blockSizeFor(fileSize);
+        long blocks = (fileSize + blockSize - 1) / blockSize;
+        if (blocks > MAX_BLOCK_COUNT) { return null; }
+        int blockCount = (int) blocks;
+
+        int[] weakChecksums = new int[blockCount];
+        byte[][] strongHashes = new byte[blockCount][];
+        byte[] block = new byte[blockSize];
+        file.seek(0);
+        for (int i = 0; i < blockCount; i++) {
+            int length = (int) Math.min(blockSize, fileSize - (long) i * blockSize);
+            file.readFully(block, 0, length);
+            weakChecksums[i] = FileDelta.weakChecksum(block, 0, length);
+            strongHashes[i] = strongHash(block, 0, length);
+        }
+        return new BlockSignatures(blockSize, fileSize, weakChecksums, strongHashes);
+    }
+
+    /** @return true if the block size and count are the ones {@link #compute} uses for a file of the size. */
+    private static boolean validSizes(int blockSize, long fileSize, int blockCount) {
+        return fileSize >= 0 && blockSize == blockSizeFor(fileSize) && blockCount <= MAX_BLOCK_COUNT
+                && blockCount == (fileSize + blockSize - 1) / blockSize;
+    }
+
+    /** @return the block size {@link #compute} uses for a file of the size. */
+    private static int blockSizeFor(long fileSize) {
+        long scaledBlockSize = ((long) Math.sqrt((double) fileSize) + MIN_BLOCK_SIZE - 1) / MIN_BLOCK_SIZE * MIN_BLOCK_SIZE;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, scaledBlockSize));
+    }
+
+    /**
+     * Compute the strong hash of a block.
+     *
+     * @param data buffer holding the block.
+     * @param offset the start offset of the block in the buffer.
+     * @param length the length of the block.
+     * @return the {@link #STRONG_HASH_LENGTH} byte hash.
+     */
+    public static byte[] strongHash(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(data, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform is required to support MD5.
+        }
+    }
+
+    /**
+     * Write the signatures to a frame or socket, preceded by whether there are any.
+     *
+     * @param signatures the signatures, or null if there are none.
+     * @param out the output stream to write to.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static void writeOptional(BlockSignatures signatures, DataOutputStream out) throws IOException {
+        out.writeBoolean(signatures != null);
+        if (signatures == null) { return; }
+
+        out.writeInt(signatures.blockSize);
+        out.writeLong(signatures.fileSize);
+        out.writeInt(signatures.blockCount());
+        for (int i = 0; i < signatures.blockCount(); i++) {
+            out.writeInt(signatures.weakChecksums[i]);
+            out.write(signatures.strongHashes[i]);
+        }
+    }
+
+    /**
+     * Read signatures written by {@link #writeOptional}. The sizes are checked against what {@link #compute}
+     * would produce, and memory is only allocated as the blocks actually arrive, since the server reads
+     * signatures from any client.
+     *
+     * @param in the input stream to read from.
+     * @return the signatures, or null if there are none.
+     * @throws IOException if an I/O exception occurs or the signatures are invalid.
+     */
+    public static BlockSignatures readOptional(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) { return null; }
+
+        int blockSize = in.readInt();
+        long fileSize = in.readLong();
+        int blockCount = in.readInt();
+        if (!validSizes(blockSize, fileSize, blockCount)) {
+            throw new IOException("Invalid block signatures");
+        }
+
+        int capacity = Math.min(blockCount, INITIAL_READ_CAPACITY);
+        int[] weakChecksums = new int[capacity];
+        byte[][] strongHashes = new byte[capacity][];
+        for (int i = 0; i < blockCount; i++) {
+            if (i == capacity) { // Grow the arrays, only as far as the blocks that arrived justify:
+                capacity = (int) Math.min(blockCount, 2L * capacity);
+                weakChecksums = Arrays.copyOf(weakChecksums, capacity);
+                strongHashes = Arrays.copyOf(strongHashes, capacity);
+            }
+            weakChecksums[i] = in.readInt();
+            strongHashes[i] = new byte[STRONG_HASH_LENGTH];
+            in.readFully(strongHashes[i]);
+        }
+        return new BlockSignatures(blockSize, fileSize, weakChecksums, strongHashes);
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
@@ -15,7 +16,8 @@ import java.net.Socket;
  *     <li>Compile the code using:
  *          <strong>{@code javac ChatClient.java}</strong>.
  *     </li>
- *     <li>Run the client by first supplying a listening port to send and receive files on.
+ *     <li>Run the client by first supplying a listening port to send and receive files on,
+ *          or {@code -m} to multiplex file transfers over the chat connection instead.
  *          Then specify the desired port and host of the chat server you wish to connect to:<br>
  *          <strong>{@code java ChatClient -l <listening port number> -p <connect server port>
  *              [-s] [connect server address]}</strong>.
@@ -34,6 +36,12 @@ public class ChatClient {
     private static int serverPort = -1;
     /** Remote server host address to connect to. */
     private static String serverHost = "localhost";
+    /** Send and receive file transfers as streams over the chat connection instead of separate connections. */
+    private static boolean multiplexFiles = false;
+    /** When downloaded files are forced to disk. */
+    private static SyncPolicy syncPolicy = SyncPolicy.ON_COMPLETE;
+    /** Print the progress and throughput of downloads. */
+    private static boolean showProgress = false;
 
     public static void main(String[] args) {
         parseArguments(args); // Parse command line arguments to extract run configuration.
@@ -45,35 +53,56 @@ public class ChatClient {
          *
          * Incoming file request will be sent to the separate local server socket. Outgoing file
          * requests will be sent as a new connection to the same chat server port using the request
-         * objects to distinguish types of requests.
+         * objects to distinguish types of requests. In multiplexed mode, both incoming and outgoing
+         * file requests are carried as flow controlled streams over the chat connection instead.
         */
         try {
-//            System.out.println("Connecting to the chat server..."); //! DEBUG
-            Socket clientSocket = new Socket(serverHost, serverPort); // Create socket and connect to the chat server on the specified host/port.
-            ServerSocket serverSocket = new ServerSocket(listenPort); // Create local listen server for file requests.
+            // Create local listen server for file requests, unless they are all multiplexed over the chat connection.
+            ServerSocket serverSocket = (listenPort != -1) ? new ServerSocket(listenPort) : null;
 
             BufferedReader stdinBuffer = new BufferedReader(new InputStreamReader(System.in)); // A buffer to read in standard input line-by-line.
 
+            /* Prompt before connecting, the server only waits a few seconds for the join request, and however long
+               the user takes to type a name shouldn't count against that. */
             String username = getUsername(stdinBuffer); // Prompt user to select a chat display name.
             if (username == null) { return; }
 
+//            System.out.println("Connecting to the chat server..."); //! DEBUG
+            Socket clientSocket = new Socket(serverHost, serverPort); // Create socket and connect to the chat server on the specified host/port.
+
             // Forward the join request object with the client username and local server port number to the chat server:
 //            System.out.println("Sending name and data the to server..."); //! DEBUG
             ObjectOutputStream socketOut = new ObjectOutputStream(clientSocket.getOutputStream());
-            socketOut.writeObject(new JoinChatRequest(username, listenPort));
+            socketOut.writeObject(new JoinChatRequest(username, listenPort, multiplexFiles));
+            socketOut.flush();
+            // Everything after the join request is sent as frames, shared by the sender, receiver, and file streams.
+            MultiplexedStreams streams = new MultiplexedStreams(new FrameOutput(clientSocket.getOutputStream()));
+
+            /* The catalog of our shared files, the files in the working directory, runs in a separate thread that
+               rescans them and sends the server any changes. It isn't part of the join, since hashing the files
+               could delay it. */
+            SharedFileCatalog catalog = new SharedFileCatalog(new File("."));
+            catalog.setFrameOutput(streams.getFrameOutput());
+            Thread catalogUpdater = new Thread(catalog);
+            catalogUpdater.start();
 
             // Start the workers to send and receive messages and file data with socket connections:
             // The fileRequestHandler runs in a separate thread so the application can handle messages and file requests separately.
-            Thread fileRequestHandler = new Thread(new FileRequestHandler(serverSocket));
-            fileRequestHandler.start();
+            if (serverSocket != null) {
+                Thread fileRequestHandler = new Thread(new FileRequestHandler(serverSocket));
+                fileRequestHandler.start();
+            }
             // The sender runs on a separate Thread to allow the application to send and receive at the same time.
-            Thread sender = new Thread(new Sender(clientSocket, clientSocket.getInetAddress(), serverPort, stdinBuffer));
+            DownloadSettings downloadSettings = new DownloadSettings(syncPolicy,
+                    showProgress ? new ConsoleProgressListener() : null);
+            Thread sender = new Thread(new Sender(clientSocket, streams, multiplexFiles,
+                    clientSocket.getInetAddress(), serverPort, stdinBuffer, downloadSettings));
             sender.start();
             // The receiver will run on the main thread, so we can call run directly since it isn't wrapped in a Thread.
-            Receiver receiver = new Receiver(clientSocket);
+            Receiver receiver = new Receiver(clientSocket, streams);
             receiver.run();
 
-            serverSocket.close(); // Fail safe.
+            if (serverSocket != null) { serverSocket.close(); } // Fail safe.
             clientSocket.close(); // Fail safe.
         } catch (Exception e) {
             System.out.println(e.getMessage());
@@ -108,6 +137,15 @@ public class ChatClient {
                     case "-p": // Connect Server port (required for client):
                         serverPort = Integer.parseInt(args[++i]);
                         break;
+                    case "-m": // Multiplex file transfers over the chat connection (optional, replaces -l):
+                        multiplexFiles = true;
+                        break;
+                    case "-y": // When downloads are synced to disk, one of never, complete, or periodic (optional):
+                        syncPolicy = parseSyncPolicy(args[++i]);
+                        break;
+                    case "-v": // Print download progress (optional):
+                        showProgress = true;
+                        break;
                     case "-s": // Connect Server address (optional for client):
                         if (args[++i].startsWith("-")) { printUsage(); }
                         serverHost = args[i];
@@ -117,17 +155,41 @@ public class ChatClient {
                         break;
                 }
             }
-            if (listenPort == -1 || serverPort == -1) { printUsage(); } // Ensure the required arguments are supplied.
+            // Ensure the required arguments are supplied, a listen port is only optional when multiplexing files.
+            if ((listenPort == -1 && !multiplexFiles) || serverPort == -1) { printUsage(); }
         } catch (NumberFormatException | IndexOutOfBoundsException e) {
             printUsage();
         }
     }
 
+    /**
+     * Parse the name of a sync policy.
+     *
+     * @param name one of never, complete, or periodic.
+     * @return the matching sync policy, the usage message is printed if there is none.
+     */
+    public static SyncPolicy parseSyncPolicy(String name) {
+        switch (name.toLowerCase()) {
+            case "never":
+                return SyncPolicy.NEVER;
+            case "complete":
+                return SyncPolicy.ON_COMPLETE;
+            case "periodic":
+                return SyncPolicy.PERIODIC;
+            default:
+                printUsage();
+                return null;
+        }
+    }
+
     /** Prints error message to show how to properly use this program and exits. */
     public static void printUsage() {
         System.out.println("\nInvalid or missing arguments!\nUsage:" +
                 "\n\tjava ChatClient -l <listening port number> -p <connect server port> " +
-                "[-s] [connect server address]\n");
+                "[-s] [connect server address]" +
+                "\n\tjava ChatClient -m [-l] [listening port number] -p <connect server port> " +
+                "[-s] [connect server address]" +
+                "\n\tdownload options: [-y never|complete|periodic] [-v]\n");
         System.exit(0);
     }
 }
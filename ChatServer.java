@@ -1,4 +1,6 @@
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
 import java.io.ObjectInputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -16,8 +18,11 @@ import java.util.HashMap;
  *     <li>Compile the code using:
  *          <strong>{@code javac ChatServer.java}</strong>.
  *     </li>
- *     <li>Run the server on your desired port:
- *          <strong>{@code java ChatServer <port>}</strong>.
+ *     <li>Run the server on your desired port, optionally with the heartbeat ping interval
+ *          and idle timeout in seconds, the log file and minimum log level, and the admission limits:
+ *          <strong>{@code java ChatServer <port> [-h <ping interval>] [-t <idle timeout>]
+ *              [-o <log file>] [-v <log level>] [-c <max connections>] [-i <max connections per IP>]
+ *              [-j <joins per second per IP>] [-f <file requests per second per IP>]}</strong>.
  *     </li>
  *     <li>Connect to the server with as many {@link ChatClient}s as you want.</li>
  *     <li>Now you can start chatting.</li>
@@ -29,117 +34,237 @@ public class ChatServer {
 
     /** Local port to listen for incoming connections. */
     private static int listenPort = -1;
-    /** A list of all active chat client socket connections. */
-    public static final ArrayList<Socket> connectedClients = new ArrayList<>();
-    /** A hashmap mapping client usernames the host and port number for their file listen server. */
+    /** Seconds a client may be quiet before we ping it to check the connection is still alive. */
+    private static int pingIntervalSeconds = 15;
+    /** Seconds a client may be quiet before we consider the connection dead and remove it. */
+    private static int idleTimeoutSeconds = 45;
+    /** The file the server log is written to. */
+    private static String logFilename = "chat-server.log";
+    /** Log records below this level are skipped. */
+    private static LogLevel logLevel = LogLevel.INFO;
+    /** The server log, written on a background thread so handlers never wait on it. */
+    public static ServerLog log;
+    /** How long a new connection has to send its request before it is dropped. */
+    private static final int REQUEST_TIMEOUT_MILLIS = 5000;
+    /**
+     * Limits on the request objects read from new connections, so a forged request can't make deserialization
+     * allocate huge arrays. The largest legitimate arrays are the block signatures of a file request.
+     */
+    private static final ObjectInputFilter REQUEST_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxarray=" + BlockSignatures.MAX_BLOCK_COUNT + ";maxdepth=16");
+    /** The most connections open at once. */
+    private static int maxConnections = 1024;
+    /** The most connections open at once from one IP address. */
+    private static int maxConnectionsPerAddress = 32;
+    /** The sustained rate of joins allowed from one IP address. */
+    private static double joinsPerSecond = 1;
+    /** The sustained rate of file requests allowed from one IP address. */
+    private static double fileRequestsPerSecond = 5;
+    /** Limits connections and the rate of joins and file requests. */
+    public static AdmissionControl admissionControl;
+    /** Pings quiet clients and removes dead ones. */
+    private static HeartbeatMonitor heartbeatMonitor;
+    /** A list of all active chat client connections. */
+    public static final ArrayList<ClientDetails> connectedClients = new ArrayList<>();
+    /** A hashmap mapping client usernames to their connection and file listen server details. */
     public static final HashMap<String, ClientDetails> clientFileServers = new HashMap<>();
+    /** An index of the files every client shares, for searching and finding files by hash. */
+    public static final FileCatalogIndex fileCatalog = new FileCatalogIndex();
 
     @SuppressWarnings("InfiniteLoopStatement")
     public static void main(String[] args) {
-        // Parse port number from command line arguments:
+        parseArguments(args); // Parse command line arguments to extract run configuration.
+        log = new ServerLog(new File(logFilename), logLevel);
         try {
-            if (args.length != 1) { printUsage(); }
-            listenPort = Integer.parseInt(args[0]);
-        } catch (NumberFormatException e) {
-            printUsage();
+            log.start();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            throw new RuntimeException(e);
         }
+        heartbeatMonitor = new HeartbeatMonitor(pingIntervalSeconds * 1000L, idleTimeoutSeconds * 1000L);
+        admissionControl = new AdmissionControl(maxConnections, maxConnectionsPerAddress,
+                joinsPerSecond, fileRequestsPerSecond);
 
         // Track active chat client connections, and spin up a thread to handle messages and file requests from the clients:
         // Create server socket, bind to port, and start listening for socket connections.
-        try (ServerSocket serverSocket = new ServerSocket(listenPort)) {
+        try (ServerSocket serverSocket = admissionControl.openServerSocket(listenPort)) {
             while (true) { // Wait for new connections repeating forever.
                 Socket clientSocket = serverSocket.accept(); // Accept incoming connections and get client socket.
-
-                //! Determine what kind of connection operation this is, file transfer or join chat.
-                //! Get the first few metadata messages:
-                //!     - For chat connect, get the clients file server port, and username and store these somehow.
-                //!     - For file transfer, the owner and file name.
-                //! Create the appropriate thread, a file proxy, or client handler.
-
-                //! COULD THIS BE CLEANED UP?
-                Request connectionRequest;
-                try {
-                    // Read in the request data from the socket:
-                    ObjectInputStream socketIn = new ObjectInputStream(clientSocket.getInputStream());
-                    connectionRequest = (Request) socketIn.readObject();
-
-                    // Parse and handle request types:
-                    if (connectionRequest.type == RequestType.JOIN_CHAT) { // Handle bew user join chat request:
-                        JoinChatRequest joinRequest = (JoinChatRequest) connectionRequest;
-    //                    System.out.println("(Join) name: " + joinRequest.username + ", file port: " + joinRequest.clientListenPort); //! DEBUG
-
-                        // Synchronize and block thread execution to avoid race condition on shared client list.
-                        boolean userExists;
-                        synchronized (clientFileServers) {
-                            userExists = clientFileServers.containsKey(joinRequest.username); // Check if the username is taken.
-                        }
-                        if (userExists) { // Reject request: username already taken.
-                            // Send back a name taken/unavailable message.
-                            DataOutputStream socketOut = new DataOutputStream(clientSocket.getOutputStream());
-                            socketOut.writeUTF("Username \"" + joinRequest.username
-                                    + "\" is already taken! Please choose a different name.");
-
-                            clientSocket.shutdownOutput();
-                            clientSocket.close();
-                            continue;
-                        }
-
-                        // Track connected clients:
-                        // Synchronize and block thread execution to avoid race condition on shared client list.
-                        synchronized (clientFileServers) {
-                            clientFileServers.put(joinRequest.username,
-                                    new ClientDetails(clientSocket.getInetAddress(), joinRequest.clientListenPort));
-                        }
-                        synchronized (connectedClients) {
-                            connectedClients.add(clientSocket);
-                        }
-
-                        /* Each client handler runs on a separate thread so the server application can handle
-                           receiving and forwarding messages for multiple clients at a time. */
-                        Thread clientHandler = new Thread(new ServerClientHandler(clientSocket, joinRequest.username));
-                        clientHandler.start();
-                    } else if (connectionRequest.type == RequestType.FILE_REQUEST) { // Handle file transfer request:
-                        FileTransferRequest fileRequest = (FileTransferRequest) connectionRequest;
-    //                    System.out.println("(File Request) owner: " + fileRequest.fileOwner + ", file: " + fileRequest.filename); //! DEBUG
-
-                        // Synchronize and block thread execution to avoid race condition on shared client list.
-                        ClientDetails owner;
-                        synchronized (clientFileServers) {
-                            owner = clientFileServers.get(fileRequest.fileOwner); // Get file owner client details.
-                        }
-                        if (owner == null) { // Reject request: client username doesn't exist.
-                            DataOutputStream socketOut = new DataOutputStream(clientSocket.getOutputStream());
-                            socketOut.writeLong(0L);
-
-                            clientSocket.shutdownOutput();
-                            clientSocket.close();
-                            continue;
-                        }
-
-                        /* Each transfer request runs on a separate thread so the server application
-                            can handle proxying multiple concurrent file requests. */
-                        Thread transferProxy = new Thread(new ServerFileTransferProxy(clientSocket,
-                                fileRequest.filename, owner.address, owner.listenPort));
-                        transferProxy.start();
-                    } else {
-                        System.out.println("Bad Request Ignored!");
-                        clientSocket.close();
-                    }
-                } catch (Exception e) {
-                    System.out.println(e.getMessage());
+                // Turn away connections over the limits before reading anything from them.
+                if (!admissionControl.admitConnection(clientSocket)
+                        || !admissionControl.admitRequest(clientSocket.getInetAddress())) {
                     clientSocket.close();
+                    continue;
                 }
+
+                /* Reading the request runs on the connection's own thread, so a slow or silent client can't stall
+                   the accept loop, and a joining client's thread goes on to become its handler. */
+                new Thread(() -> handleConnection(clientSocket)).start();
             }
         } catch (Exception e) {
+            log.error(e.getMessage());
             System.out.println(e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Read the request a new connection opens with, then handle it: a joining client is added to the
+     * chat and this thread becomes its handler, and a file request is routed to the file's owner.
+     *
+     * @param clientSocket the admitted socket of the new connection.
+     */
+    private static void handleConnection(Socket clientSocket) {
+        //! Determine what kind of connection operation this is, file transfer or join chat.
+        //! Get the first few metadata messages:
+        //!     - For chat connect, get the clients file server port, and username and store these somehow.
+        //!     - For file transfer, the owner and file name.
+        //! Create the appropriate thread, a file proxy, or client handler.
+
+        //! COULD THIS BE CLEANED UP?
+        Request connectionRequest;
+        try {
+            // Read in the request data from the socket, without letting a silent connection hold its slot forever:
+            clientSocket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            ObjectInputStream socketIn = new ObjectInputStream(clientSocket.getInputStream());
+            socketIn.setObjectInputFilter(REQUEST_FILTER);
+            connectionRequest = (Request) socketIn.readObject();
+            clientSocket.setSoTimeout(0);
+
+            // Parse and handle request types:
+            if (connectionRequest.type == RequestType.JOIN_CHAT) { // Handle bew user join chat request:
+                JoinChatRequest joinRequest = (JoinChatRequest) connectionRequest;
+//                    System.out.println("(Join) name: " + joinRequest.username + ", file port: " + joinRequest.clientListenPort); //! DEBUG
+
+                if (!admissionControl.admitJoin(clientSocket.getInetAddress())) { // Reject request: joining too often.
+                    rejectJoin(clientSocket, "Too many join attempts! Please try again later.");
+                    return;
+                }
+
+                // Track connected clients:
+                ClientDetails client = new ClientDetails(joinRequest.username, clientSocket,
+                        new FrameOutput(clientSocket.getOutputStream()),
+                        joinRequest.clientListenPort, joinRequest.multiplexed);
+                /* Synchronize and block thread execution to avoid race condition on shared client list. Joins are
+                   read on separate threads, so checking and claiming the username must happen together. */
+                boolean userExists;
+                synchronized (clientFileServers) {
+                    userExists = clientFileServers.putIfAbsent(joinRequest.username, client) != null;
+                }
+                if (userExists) { // Reject request: username already taken.
+                    // Send back a name taken/unavailable message.
+                    rejectJoin(clientSocket, "Username \"" + joinRequest.username
+                            + "\" is already taken! Please choose a different name.");
+                    return;
+                }
+                synchronized (connectedClients) {
+                    connectedClients.add(client);
+                }
+                heartbeatMonitor.watch(client);
+
+                /* Each client handler runs on a separate thread, this connection's thread, so the server application
+                   can handle receiving and forwarding messages for multiple clients at a time. */
+                new ServerClientHandler(client).run();
+            } else if (connectionRequest.type == RequestType.FILE_REQUEST) { // Handle file transfer request:
+                FileTransferRequest fileRequest = (FileTransferRequest) connectionRequest;
+//                    System.out.println("(File Request) owner: " + fileRequest.fileOwner + ", file: " + fileRequest.filename); //! DEBUG
+
+                /* Each transfer request runs on a separate thread (or over the owner's chat connection)
+                    so the server application can handle proxying multiple concurrent file requests. */
+                FileStreamRelay relay = FileStreamRelay.forSocketRequester(clientSocket);
+                if (!admissionControl.admitFileRequest(clientSocket.getInetAddress())) { // Reject request: requesting files too often.
+                    relay.reject();
+                } else if (fileRequest.signatures != null && !fileRequest.signatures.isValid()) { // Reject request: forged signatures.
+                    log.warn("Invalid block signatures from " + clientSocket.getInetAddress());
+                    relay.reject();
+                } else {
+                    relay.open(fileRequest.fileOwner, fileRequest.filename, fileRequest.signatures);
+                }
+            } else {
+                log.warn("Bad Request Ignored!");
+                clientSocket.close();
+            }
+        } catch (Exception e) {
+            log.warn("Connection request failed: " + e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Send a rejected client the reason it can't join, then close the connection.
+     *
+     * @param clientSocket the socket of the rejected client.
+     * @param reason the message to show the client.
+     * @throws IOException if an I/O exception occurs.
+     */
+    private static void rejectJoin(Socket clientSocket, String reason) throws IOException {
+        FrameOutput socketOut = new FrameOutput(clientSocket.getOutputStream());
+        socketOut.writeMessage(reason);
+
+        clientSocket.shutdownOutput();
+        clientSocket.close();
+    }
+
+    /**
+     * Parse the command line arguments to extract run configuration arguments. The port must come first,
+     * followed by the optional flags in any order, each with its value immediately after the flag.
+     *
+     * @param args an array of the command line arguments.
+     */
+    public static void parseArguments(String[] args) {
+        try {
+            if (args.length < 1) { printUsage(); }
+            listenPort = Integer.parseInt(args[0]);
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i].toLowerCase()) {
+                    case "-h": // Heartbeat ping interval in seconds (optional):
+                        pingIntervalSeconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "-t": // Idle timeout in seconds (optional):
+                        idleTimeoutSeconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "-o": // Log file (optional):
+                        logFilename = args[++i];
+                        break;
+                    case "-v": // Minimum log level, one of debug, info, warn, or error (optional):
+                        logLevel = LogLevel.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "-c": // Maximum open connections (optional):
+                        maxConnections = Integer.parseInt(args[++i]);
+                        break;
+                    case "-i": // Maximum open connections per IP address (optional):
+                        maxConnectionsPerAddress = Integer.parseInt(args[++i]);
+                        break;
+                    case "-j": // Joins per second per IP address (optional):
+                        joinsPerSecond = Double.parseDouble(args[++i]);
+                        break;
+                    case "-f": // File requests per second per IP address (optional):
+                        fileRequestsPerSecond = Double.parseDouble(args[++i]);
+                        break;
+                    default: // Error case, if it doesn't match one of the flag the command is invalid syntax.
+                        printUsage();
+                        break;
+                }
+            }
+            // Clients need time to answer a ping before they are considered dead.
+            if (pingIntervalSeconds <= 0 || idleTimeoutSeconds <= pingIntervalSeconds) { printUsage(); }
+            if (maxConnections <= 0 || maxConnectionsPerAddress <= 0 || joinsPerSecond <= 0
+                    || fileRequestsPerSecond <= 0) { printUsage(); }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) { // Includes NumberFormatException.
+            printUsage();
+        }
+    }
+
     /** Prints error message to show how to properly use this program and exits. */
     public static void printUsage() {
         System.out.println("\nInvalid or missing arguments!\nUsage:" +
-                "\n\tjava ChatServer <port>\n");
+                "\n\tjava ChatServer <port> [-h <ping interval seconds>] [-t <idle timeout seconds>]" +
+                "\n\t\t[-o <log file>] [-v debug|info|warn|error]" +
+                "\n\t\t[-c <max connections>] [-i <max connections per IP>]" +
+                "\n\t\t[-j <joins per second per IP>] [-f <file requests per second per IP>]" +
+                "\n\tThe idle timeout must be longer than the ping interval.\n");
         System.exit(0);
     }
 }
@@ -1,13 +1,61 @@
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
 
 /** Holds client details to make it easy to reference these values in one place. */
 public class ClientDetails {
 
+    public final String username;
+    /** The active chat socket connection of the client. */
+    public final Socket socket;
+    /** Frame output shared by every thread writing to the client's chat connection. */
+    public final FrameOutput out;
     public final InetAddress address;
+    /** The port of the client's file listen server, or -1 if it doesn't have one. */
     public final int listenPort;
+    /** True if the client sends and receives file transfers multiplexed over its chat connection. */
+    public final boolean multiplexed;
 
-    public ClientDetails(InetAddress address, int listenPort) {
-        this.address = address;
+    /** File streams the client requested over its chat connection, keyed by the stream id the client chose. */
+    public final HashMap<Integer, FileStreamRelay> requestedStreams = new HashMap<>();
+    /** File streams opened to the client as the file owner, keyed by the stream id the server chose. */
+    public final HashMap<Integer, FileStreamRelay> ownedStreams = new HashMap<>();
+    private int nextStreamId = 1;
+    /** The time in milliseconds the server last received a frame from the client. */
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    public ClientDetails(String username, Socket socket, FrameOutput out, int listenPort, boolean multiplexed) {
+        this.username = username;
+        this.socket = socket;
+        this.out = out;
+        this.address = socket.getInetAddress();
         this.listenPort = listenPort;
+        this.multiplexed = multiplexed;
+    }
+
+    /** @return a new stream id for a file stream opened to this client as the file owner. */
+    public synchronized int nextStreamId() {
+        return nextStreamId++;
+    }
+
+    /** Record that a frame was just received from the client. */
+    public void recordActivity() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /** @return the time in milliseconds the server last received a frame from the client. */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Close the client's socket without waiting on any thread using it. Blocked reads and writes on
+     * the socket fail right away, and the client's handler removes it from the chat.
+     */
+    public void disconnect() {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
     }
 }
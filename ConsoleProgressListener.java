@@ -0,0 +1,39 @@
+import java.util.HashMap;
+
+/**
+ * A ConsoleProgressListener prints the progress and throughput of downloads to standard output,
+ * at most once a second per file name so large files don't flood the chat.
+ *
+ * @see TransferProgressListener
+ */
+public class ConsoleProgressListener implements TransferProgressListener {
+
+    private static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;
+
+    /** When progress was last printed for each file name being downloaded. */
+    private final HashMap<String, Long> lastReportNanos = new HashMap<>();
+
+    @Override
+    public synchronized void onProgress(String filename, long bytesWritten, long totalBytes, long elapsedNanos) {
+        long now = System.nanoTime();
+        // The first report comes a second into the download, like every later one.
+        long lastReport = lastReportNanos.computeIfAbsent(filename, name -> now - elapsedNanos);
+        if (now - lastReport < REPORT_INTERVAL_NANOS) { return; }
+        lastReportNanos.put(filename, now);
+        System.out.println("Receiving " + filename + ": " + (bytesWritten * 100 / totalBytes) + "% ("
+                + formatRate(bytesWritten, elapsedNanos) + ")");
+    }
+
+    @Override
+    public synchronized void onComplete(String filename, long totalBytes, long elapsedNanos) {
+        lastReportNanos.remove(filename);
+        System.out.println("Received " + filename + ": " + totalBytes + " bytes in "
+                + String.format("%.2f", elapsedNanos / 1e9) + "s (" + formatRate(totalBytes, elapsedNanos) + ")");
+    }
+
+    /** @return the throughput in megabytes per second. */
+    private static String formatRate(long bytes, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        return String.format("%.2f MB/s", bytes / seconds / (1024 * 1024));
+    }
+}
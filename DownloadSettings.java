@@ -0,0 +1,13 @@
+/** Holds the settings for writing downloaded files to make it easy to reference these values in one place. */
+public class DownloadSettings {
+
+    /** When downloaded files are forced to disk. */
+    public final SyncPolicy syncPolicy;
+    /** Notified as downloads are written, or null. */
+    public final TransferProgressListener progressListener;
+
+    public DownloadSettings(SyncPolicy syncPolicy, TransferProgressListener progressListener) {
+        this.syncPolicy = syncPolicy;
+        this.progressListener = progressListener;
+    }
+}
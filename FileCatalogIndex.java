@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A FileCatalogIndex is the chat server's in-memory index of the files every chat client shares.
+ * It supports searching for files by name prefix or substring across all users, looking up which
+ * users share a file with a given hash, and answering requests for files an owner doesn't have without
+ * contacting the owner. Only catalogs whose last scan saw every shared file are trusted with that, and
+ * each owner's catalog is capped at {@link #MAX_FILES_PER_OWNER} entries. All methods are synchronized
+ * so the index can be shared by every client handler thread.
+ *
+ * @see SharedFile
+ * @see SharedFileCatalog
+ */
+public class FileCatalogIndex {
+
+    /** The most files kept in one owner's catalog, a catalog with more is incomplete. */
+    public static final int MAX_FILES_PER_OWNER = 4096;
+
+    /** A shared file together with the username of the client sharing it. */
+    public static class Entry {
+        public final String owner;
+        public final SharedFile file;
+
+        public Entry(String owner, SharedFile file) {
+            this.owner = owner;
+            this.file = file;
+        }
+    }
+
+    /** Each owner's catalog, keyed by owner username then file name. */
+    private final HashMap<String, HashMap<String, Entry>> byOwner = new HashMap<>();
+    /** Entries keyed by lowercase file name, sorted so a prefix search is a range of keys. */
+    private final TreeMap<String, HashSet<Entry>> byName = new TreeMap<>();
+    /** Entries keyed by file hash. */
+    private final HashMap<String, HashSet<Entry>> byHash = new HashMap<>();
+    /** Owners whose last scan saw every shared file. */
+    private final HashSet<String> completeOwners = new HashSet<>();
+    /** Owners that went over the catalog cap, whose catalogs are never trusted to be complete again. */
+    private final HashSet<String> truncatedOwners = new HashSet<>();
+
+    /**
+     * Add or replace a single file in an owner's catalog. Files past the cap are dropped.
+     *
+     * @param owner the owner's username.
+     * @param file the added or changed file.
+     */
+    public synchronized void add(String owner, SharedFile file) {
+        HashMap<String, Entry> catalog = byOwner.computeIfAbsent(owner, name -> new HashMap<>());
+        Entry previous = catalog.get(file.name);
+        if (previous != null) {
+            unindex(previous);
+        } else if (catalog.size() >= MAX_FILES_PER_OWNER) {
+            truncatedOwners.add(owner);
+            completeOwners.remove(owner);
+            return;
+        }
+
+        Entry entry = new Entry(owner, file);
+        catalog.put(file.name, entry);
+        byName.computeIfAbsent(file.name.toLowerCase(), name -> new HashSet<>()).add(entry);
+        byHash.computeIfAbsent(file.hash, hash -> new HashSet<>()).add(entry);
+    }
+
+    /**
+     * Remove a single file from an owner's catalog.
+     *
+     * @param owner the owner's username.
+     * @param filename the name of the removed file.
+     */
+    public synchronized void remove(String owner, String filename) {
+        HashMap<String, Entry> catalog = byOwner.get(owner);
+        if (catalog == null) { return; }
+        Entry entry = catalog.remove(filename);
+        if (entry != null) { unindex(entry); }
+    }
+
+    /**
+     * Record that an owner finished a rescan and sent its changes.
+     *
+     * @param owner the owner's username.
+     * @param complete true if the scan saw every file the owner shares.
+     */
+    public synchronized void synced(String owner, boolean complete) {
+        if (complete && !truncatedOwners.contains(owner)) {
+            completeOwners.add(owner);
+        } else {
+            completeOwners.remove(owner);
+        }
+    }
+
+    /**
+     * Check whether a request for a file by name could succeed. A request is only turned down when the owner's
+     * last scan saw every shared file, and the name is one a scan would have listed the file under. A file
+     * created since the last scan is found once the next scan sends it.
+     *
+     * @param owner the owner's username.
+     * @param filename the requested file name.
+     * @return false only if the owner's complete catalog doesn't have the file.
+     */
+    public synchronized boolean mayHave(String owner, String filename) {
+        if (!completeOwners.contains(owner) || !SharedFileCatalog.isCatalogName(filename)) { return true; }
+        // Names that only differ in case may be the same file on the owner's file system.
+        HashSet<Entry> entries = byName.get(filename.toLowerCase());
+        if (entries == null) { return false; }
+        for (Entry entry : entries) {
+            if (entry.owner.equals(owner)) { return true; }
+        }
+        return false;
+    }
+
+    /**
+     * Remove an owner's whole catalog after they leave the chat.
+     *
+     * @param owner the owner's username.
+     */
+    public synchronized void removeOwner(String owner) {
+        completeOwners.remove(owner);
+        truncatedOwners.remove(owner);
+        HashMap<String, Entry> catalog = byOwner.remove(owner);
+        if (catalog == null) { return; }
+        for (Entry entry : catalog.values()) {
+            unindex(entry);
+        }
+    }
+
+    /**
+     * Find every shared copy of a file by its hash.
+     *
+     * @param hash the hex encoded SHA-256 hash of the file.
+     * @return the entries sharing a file with the hash, possibly empty.
+     */
+    public synchronized ArrayList<Entry> findByHash(String hash) {
+        HashSet<Entry> entries = byHash.get(hash.toLowerCase());
+        return (entries == null) ? new ArrayList<>() : new ArrayList<>(entries);
+    }
+
+    /**
+     * Search every catalog for file names starting with the query, followed by file names
+     * containing the query, ignoring case.
+     *
+     * @param query the text to search for.
+     * @param limit the maximum number of results.
+     * @return the matching entries, prefix matches first.
+     */
+    public synchronized ArrayList<Entry> search(String query, int limit) {
+        String key = query.toLowerCase();
+        ArrayList<Entry> results = new ArrayList<>();
+
+        // Prefix matches are the range of sorted names from the query up to the last name starting with it.
+        Map<String, HashSet<Entry>> prefixMatches = byName.subMap(key, true, key + Character.MAX_VALUE, true);
+        for (HashSet<Entry> entries : prefixMatches.values()) {
+            if (addAll(results, entries, limit)) { return results; }
+        }
+        // Substring matches have to check each distinct name, skipping the prefix matches already found.
+        for (Map.Entry<String, HashSet<Entry>> names : byName.entrySet()) {
+            if (names.getKey().contains(key) && !names.getKey().startsWith(key)) {
+                if (addAll(results, names.getValue(), limit)) { return results; }
+            }
+        }
+        return results;
+    }
+
+    /** Add entries to the results up to the limit, returning true once the limit is reached. */
+    private static boolean addAll(ArrayList<Entry> results, HashSet<Entry> entries, int limit) {
+        for (Entry entry : entries) {
+            if (results.size() >= limit) { return true; }
+            results.add(entry);
+        }
+        return results.size() >= limit;
+    }
+
+    /** Remove an entry from the name and hash indexes. */
+    private void unindex(Entry entry) {
+        removeFrom(byName, entry.file.name.toLowerCase(), entry);
+        removeFrom(byHash, entry.file.hash, entry);
+    }
+
+    /** Remove an entry from an index, dropping the key once it has no entries left. */
+    private static void removeFrom(Map<String, HashSet<Entry>> index, String key, Entry entry) {
+        HashSet<Entry> entries = index.get(key);
+        if (entries == null) { return; }
+        entries.remove(entry);
+        if (entries.isEmpty()) { index.remove(key); }
+    }
+}
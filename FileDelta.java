@@ -0,0 +1,249 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * FileDelta encodes a file as the difference from a requester's existing copy, and rebuilds the file
+ * from that difference, in the style of rsync. The owner slides a rolling weak checksum over its file,
+ * and wherever a window matches one of the requester's {@link BlockSignatures}, sends a reference to that
+ * block instead of the data. Everything else is sent as literal data. A delta is a sequence of operations:
+ * <ul>
+ *     <li>{@code COPY <int block index>} copy a block from the requester's existing copy.</li>
+ *     <li>{@code LITERAL <int length> <bytes>} write the literal data.</li>
+ *     <li>{@code END <32 byte SHA-256>} the file is complete, followed by the hash of the owner's whole file.</li>
+ * </ul>
+ * The requester checks the hash of the rebuilt file, so a delta applied to an existing copy that changed
+ * since its signatures were computed is never mistaken for the owner's file.
+ *
+ * @see BlockSignatures
+ */
+public class FileDelta {
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_LITERAL = 2;
+    /** Literal data is sent in pieces of at most this many bytes. */
+    private static final int MAX_LITERAL_LENGTH = 64 * 1024;
+    /** Length of the whole file hash sent after {@code END}. */
+    private static final int FILE_HASH_LENGTH = 32;
+
+    /**
+     * Compute the weak checksum of a block, the same checksum {@link #encode} rolls over the file.
+     * The low 16 bits are the sum of the bytes, and the high 16 bits are the sum weighted by each
+     * byte's distance from the end of the block.
+     *
+     * @param data buffer holding the block.
+     * @param offset the start offset of the block in the buffer.
+     * @param length the length of the block.
+     * @return the weak checksum.
+     */
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Write the file as a delta against the requester's copy described by the signatures.
+     *
+     * @param file the owner's copy of the file.
+     * @param signatures the block signatures of the requester's copy.
+     * @param out the output stream to write the delta to.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static void encode(File file, BlockSignatures signatures, DataOutputStream out) throws IOException {
+        int blockSize = signatures.blockSize;
+        int lastBlock = signatures.blockCount() - 1;
+        int lastBlockLength = (int) (signatures.fileSize - (long) lastBlock * blockSize);
+
+        // Index the full size blocks by weak checksum, a short last block can only match at the end of the file.
+        HashMap<Integer, ArrayList<Integer>> blocksByChecksum = new HashMap<>();
+        for (int i = 0; i < signatures.blockCount(); i++) {
+            if (i == lastBlock && lastBlockLength < blockSize) { break; }
+            blocksByChecksum.computeIfAbsent(signatures.weakChecksums[i], checksum -> new ArrayList<>()).add(i);
+        }
+
+        /* The buffer holds unsent literal data, then the current window. Literal data is flushed before it
+           reaches MAX_LITERAL_LENGTH, so compacting the buffer always leaves room for at least one more block. */
+        byte[] buffer = new byte[MAX_LITERAL_LENGTH + 2 * blockSize];
+        int literalStart = 0; // Start of the literal data not yet sent.
+        int position = 0;     // Start of the current window.
+        int end = 0;          // End of the data read into the buffer.
+        boolean endOfFile = false;
+
+        int a = 0;
+        int b = 0;
+        boolean windowValid = false;
+        int removedByte = -1; // The byte that slid out of the window since the checksum was last updated.
+
+        MessageDigest fileDigest = sha256(); // Every byte of the file is read once below, so hash it on the way.
+        try (InputStream fileInput = new DigestInputStream(new FileInputStream(file), fileDigest)) {
+            while (true) {
+                if (position + blockSize > end && !endOfFile) { // Compact the buffer and read more data:
+                    System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+                    position -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                    int wanted = buffer.length - end;
+                    int bytesRead = fileInput.readNBytes(buffer, end, wanted);
+                    end += bytesRead;
+                    endOfFile = bytesRead < wanted;
+                }
+                if (position + blockSize > end) { break; } // Less than a block is left.
+
+                if (!windowValid) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int value = buffer[position + i] & 0xFF;
+                        a += value;
+                        b += (blockSize - i) * value;
+                    }
+                    windowValid = true;
+                } else if (removedByte != -1) { // Roll the checksum forward by one byte:
+                    int addedByte = buffer[position + blockSize - 1] & 0xFF;
+                    a = a - removedByte + addedByte;
+                    b = b - blockSize * removedByte + a;
+                }
+                removedByte = -1;
+                a &= 0xFFFF;
+                b &= 0xFFFF;
+
+                int match = findBlock(blocksByChecksum.get(a | (b << 16)), signatures, buffer, position, blockSize);
+                if (match != -1) { // The requester already has this block:
+                    writeLiteral(out, buffer, literalStart, position);
+                    out.writeByte(OP_COPY);
+                    out.writeInt(match);
+                    position += blockSize;
+                    literalStart = position;
+                    windowValid = false;
+                } else { // Slide the window one byte, the byte leaving the window becomes literal data:
+                    removedByte = buffer[position] & 0xFF;
+                    position++;
+                    if (position - literalStart >= MAX_LITERAL_LENGTH) {
+                        writeLiteral(out, buffer, literalStart, position);
+                        literalStart = position;
+                    }
+                }
+            }
+        }
+
+        // The rest of the file is shorter than a block, so it can only match a short last block:
+        int remaining = end - position;
+        if (remaining > 0 && remaining == lastBlockLength && lastBlockLength < blockSize
+                && weakChecksum(buffer, position, remaining) == signatures.weakChecksums[lastBlock]
+                && Arrays.equals(BlockSignatures.strongHash(buffer, position, remaining),
+                                 signatures.strongHashes[lastBlock])) {
+            writeLiteral(out, buffer, literalStart, position);
+            out.writeByte(OP_COPY);
+            out.writeInt(lastBlock);
+        } else {
+            writeLiteral(out, buffer, literalStart, end);
+        }
+        out.writeByte(OP_END);
+        out.write(fileDigest.digest());
+    }
+
+    /**
+     * Rebuild the file from a delta and the requester's existing copy, and check the rebuilt file
+     * against the hash of the owner's file.
+     *
+     * @param base the requester's existing copy of the file, the same open file the signatures were computed from.
+     * @param signatures the block signatures sent for the existing copy.
+     * @param in the input stream to read the delta from.
+     * @param out the output stream to write the rebuilt file to.
+     * @return the number of bytes written.
+     * @throws IOException if an I/O exception occurs, the delta is invalid, or the rebuilt file doesn't match.
+     */
+    public static long apply(RandomAccessFile base, BlockSignatures signatures, DataInputStream in, OutputStream out)
+            throws IOException {
+        long bytesWritten = 0;
+        byte[] buffer = new byte[Math.max(MAX_LITERAL_LENGTH, signatures.blockSize)];
+        MessageDigest fileDigest = sha256();
+        while (true) {
+            int operation = in.readUnsignedByte();
+            int length;
+            if (operation == OP_END) {
+                byte[] fileHash = new byte[FILE_HASH_LENGTH];
+                in.readFully(fileHash);
+                if (!MessageDigest.isEqual(fileHash, fileDigest.digest())) {
+                    throw new IOException("Rebuilt file doesn't match the owner's, "
+                            + "the existing copy changed during the transfer");
+                }
+                return bytesWritten;
+            } else if (operation == OP_COPY) {
+                int block = in.readInt();
+                if (block < 0 || block >= signatures.blockCount()) {
+                    throw new IOException("Invalid delta block: " + block);
+                }
+                long offset = (long) block * signatures.blockSize;
+                length = (int) Math.min(signatures.blockSize, signatures.fileSize - offset);
+                base.seek(offset);
+                base.readFully(buffer, 0, length);
+            } else if (operation == OP_LITERAL) {
+                length = in.readInt();
+                if (length <= 0 || length > MAX_LITERAL_LENGTH) {
+                    throw new IOException("Invalid delta literal length: " + length);
+                }
+                in.readFully(buffer, 0, length);
+            } else {
+                throw new IOException("Invalid delta operation: " + operation);
+            }
+            fileDigest.update(buffer, 0, length);
+            out.write(buffer, 0, length);
+            bytesWritten += length;
+        }
+    }
+
+    /** @return a new SHA-256 digest for whole file hashes. */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform is required to support SHA-256.
+        }
+    }
+
+    /**
+     * Find a block with the weak checksum whose strong hash also matches the window.
+     *
+     * @return the block index, or -1 if no block matches.
+     */
+    private static int findBlock(ArrayList<Integer> candidates, BlockSignatures signatures,
+                                 byte[] buffer, int position, int length) {
+        if (candidates == null) { return -1; }
+        byte[] strongHash = null; // Only computed once a weak checksum matches.
+        for (int block : candidates) {
+            if (strongHash == null) { strongHash = BlockSignatures.strongHash(buffer, position, length); }
+            if (Arrays.equals(strongHash, signatures.strongHashes[block])) { return block; }
+        }
+        return -1;
+    }
+
+    /** Write the buffered literal data between two positions in pieces. */
+    private static void writeLiteral(DataOutputStream out, byte[] buffer, int from, int to) throws IOException {
+        while (from < to) {
+            int length = Math.min(to - from, MAX_LITERAL_LENGTH);
+            out.writeByte(OP_LITERAL);
+            out.writeInt(length);
+            out.write(buffer, from, length);
+            from += length;
+        }
+    }
+}
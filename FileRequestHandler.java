@@ -1,3 +1,5 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -45,39 +47,14 @@ public class FileRequestHandler implements Runnable {
                 try {
                     Socket fileSocket = fileRequestSocket.accept();
                     // Input & output streams to send and receive data from the socket connection.
-                    DataInputStream socketIn = new DataInputStream(fileSocket.getInputStream());
-                    DataOutputStream socketOut = new DataOutputStream(fileSocket.getOutputStream());
+                    DataInputStream socketIn = new DataInputStream(new BufferedInputStream(fileSocket.getInputStream()));
+                    DataOutputStream socketOut = new DataOutputStream(new BufferedOutputStream(fileSocket.getOutputStream()));
 
                     String filename = socketIn.readUTF(); // Get the requested filename.
+                    BlockSignatures signatures = BlockSignatures.readOptional(socketIn); // Requester's existing copy.
 //                System.out.println("Received request for: " + filename); // DEBUG
-                    File file = new File(filename);
-                    if (file.exists() && file.canRead()) { // Send back the file size if it exists.
-                        long fileSize = file.length();
-                        if (fileSize > 0) {
-                            socketOut.writeLong(fileSize);
-                        } else {
-                            socketOut.writeLong(0L);
-                            fileSocket.shutdownOutput();
-                            fileSocket.close();
-                            continue;
-                        }
-                    } else {
-                        socketOut.writeLong(0L);
-                        fileSocket.shutdownOutput();
-                        fileSocket.close();
-                        continue;
-                    }
-//                System.out.println("Sending: " + filename); // DEBUG
-
-                    // Read file into buffer and send over the socket in pieces:
-                    int bytesRead;
-                    byte[] fileBuffer = new byte[1500];
-                    FileInputStream fileInput = new FileInputStream(file);
-                    while ((bytesRead = fileInput.read(fileBuffer)) != -1) {
-//                    System.out.println(bytesRead + " bytes read"); // DEBUG
-                        socketOut.write(fileBuffer, 0, bytesRead);
-                    }
-                    fileInput.close();
+                    sendFile(filename, signatures, socketOut);
+                    socketOut.flush();
 
                     fileSocket.shutdownOutput();
                     fileSocket.close();
@@ -88,4 +65,37 @@ public class FileRequestHandler implements Runnable {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Send the file size followed by the file data, or a file size of zero if the file doesn't exist,
+     * can't be read, or is empty. If the requester sent the signatures of an existing copy of the file,
+     * the file data is sent as a {@link FileDelta} against that copy instead. Used for both file transfer
+     * connections and multiplexed streams.
+     *
+     * @param filename the name of the requested file.
+     * @param signatures the block signatures of the requester's existing copy of the file, or null.
+     * @param out the output stream to write the response to.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static void sendFile(String filename, BlockSignatures signatures, DataOutputStream out) throws IOException {
+        File file = new File(filename);
+        long fileSize = (file.exists() && file.canRead()) ? file.length() : 0L;
+        out.writeLong(fileSize); // Send back the file size if it exists.
+        if (fileSize == 0) { return; }
+//                System.out.println("Sending: " + filename); // DEBUG
+        if (signatures != null) { // Only send what changed from the requester's copy:
+            FileDelta.encode(file, signatures, out);
+            return;
+        }
+
+        // Read file into buffer and send over the socket in pieces:
+        int bytesRead;
+        byte[] fileBuffer = new byte[1500];
+        try (FileInputStream fileInput = new FileInputStream(file)) {
+            while ((bytesRead = fileInput.read(fileBuffer)) != -1) {
+//                    System.out.println(bytesRead + " bytes read"); // DEBUG
+                out.write(fileBuffer, 0, bytesRead);
+            }
+        }
+    }
 }
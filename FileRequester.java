@@ -1,16 +1,21 @@
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.Socket;
 
 /**
  * A FileRequester lets the application carry out a transfer request for a file from another
- * client connected to the chat server. Files are transferred over the {@link Socket} connection,
- * then stored locally. FileRequester also implements the {@link Runnable} interface which means
- * that, if desired, the FileRequester can be wrapped with a {@link Thread} object to execute on
- * a separate thread.
+ * client connected to the chat server, either by the owner's name and file name, or by the file's
+ * hash from any client sharing it. Files are transferred over the {@link Socket} connection,
+ * then stored locally. If we already have a copy of the file, we send its {@link BlockSignatures}
+ * and the owner only sends the changes as a {@link FileDelta}. Downloads are written with a
+ * {@link PartialFileWriter}, so the local file is only replaced once the whole file arrived.
+ * FileRequester also implements the {@link Runnable} interface which means that, if desired, the
+ * FileRequester can be wrapped with a {@link Thread} object to execute on a separate thread.
  *
  * @see Runnable
  * @see FileRequestHandler
@@ -18,10 +23,19 @@ import java.net.Socket;
  */
 public class FileRequester implements Runnable {
 
+    /** Size of the pieces file data is read from the connection in. */
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
     private final InetAddress fileServerAddress;
     private final int fileServerPort;
+    /** The stream table of the chat connection when files are requested over it, otherwise null. */
+    private final MultiplexedStreams streams;
     private final String fileOwner;
     private final String filename;
+    /** The name to save the file as locally. */
+    private final String localFilename;
+    /** How the downloaded file is written. */
+    private final DownloadSettings settings;
 
     /**
      * Creates a FileRequester that uses the owners name to request a file transfer
@@ -29,14 +43,43 @@ public class FileRequester implements Runnable {
      *
      * @param fileServerAddress the remote IP address of the chat server address for file transfer.
      * @param fileServerPort the port number of the remote chat server socket for file transfer.
-     * @param fileOwner the username of the remote chat client that owns the file we want to request.
-     * @param filename the name of the remote file we want to request.
+     * @param fileOwner the username of the remote chat client that owns the file we want to request,
+     *                  or {@link FileTransferRequest#ANY_OWNER} to request the file by hash.
+     * @param filename the name of the remote file we want to request, or its hash.
+     * @param localFilename the name to save the file as locally.
+     * @param settings how the downloaded file is written.
      */
-    public FileRequester(InetAddress fileServerAddress, int fileServerPort, String fileOwner, String filename) {
+    public FileRequester(InetAddress fileServerAddress, int fileServerPort, String fileOwner, String filename,
+                         String localFilename, DownloadSettings settings) {
         this.fileServerAddress = fileServerAddress;
         this.fileServerPort = fileServerPort;
+        this.streams = null;
+        this.fileOwner = fileOwner;
+        this.filename = filename;
+        this.localFilename = localFilename;
+        this.settings = settings;
+    }
+
+    /**
+     * Creates a FileRequester that requests the file as a multiplexed stream over the existing
+     * chat server connection, instead of opening a new file transfer connection.
+     *
+     * @param streams the stream table of the chat connection.
+     * @param fileOwner the username of the remote chat client that owns the file we want to request,
+     *                  or {@link FileTransferRequest#ANY_OWNER} to request the file by hash.
+     * @param filename the name of the remote file we want to request, or its hash.
+     * @param localFilename the name to save the file as locally.
+     * @param settings how the downloaded file is written.
+     */
+    public FileRequester(MultiplexedStreams streams, String fileOwner, String filename, String localFilename,
+                         DownloadSettings settings) {
+        this.fileServerAddress = null;
+        this.fileServerPort = -1;
+        this.streams = streams;
         this.fileOwner = fileOwner;
         this.filename = filename;
+        this.localFilename = localFilename;
+        this.settings = settings;
     }
 
     /**
@@ -45,28 +88,24 @@ public class FileRequester implements Runnable {
      */
     @Override
     public void run() {
-        try { // Make request to server for a specific file.
+        if (streams != null) {
+            runMultiplexed();
+            return;
+        }
+
+        // Make request to server for a specific file, keeping our existing copy open until the delta is applied.
+        try (RandomAccessFile existingCopy = openExistingCopy()) {
             Socket fileSocket = new Socket(fileServerAddress, fileServerPort);
             // Input & output streams to send and receive data from the socket connection.
             ObjectOutputStream socketOut = new ObjectOutputStream(fileSocket.getOutputStream());
-            DataInputStream socketIn = new DataInputStream(fileSocket.getInputStream());
+            DataInputStream socketIn = new DataInputStream(new BufferedInputStream(fileSocket.getInputStream()));
 
 //            System.out.println("Requesting: " + filename + ", from user: " + fileOwner); //! DEBUG
-            socketOut.writeObject(new FileTransferRequest(fileOwner, filename)); // Send file transfer request object to the server.
-            long fileSize = socketIn.readLong();
-//            System.out.println(fileSize + "bytes expected"); //! DEBUG
-            if (fileSize == 0) { return; } // Check file size in not zero.
-//            System.out.println("Reading in: " + filename); //! DEBUG
-
-            // Read socket data into buffer and write data to file in pieces:
-            int bytesReceived;
-            byte[] fileBuffer = new byte[1500];
-            FileOutputStream fileOutput = new FileOutputStream(filename);
-            while ((bytesReceived = socketIn.read(fileBuffer)) != -1) {
-//                System.out.println(bytesReceived + " bytes received"); //! DEBUG
-                fileOutput.write(fileBuffer, 0, bytesReceived);
-            }
-            fileOutput.close();
+            BlockSignatures signatures = (existingCopy != null) ? BlockSignatures.compute(existingCopy) : null;
+            // Send file transfer request object to the server.
+            socketOut.writeObject(new FileTransferRequest(fileOwner, filename, signatures));
+            receiveFile(socketIn, existingCopy, signatures);
+            fileSocket.close();
         } catch (IOException e) { // Other side of the socket may have shutdown.
             System.out.println(e.getMessage());
         } catch (Exception e) {
@@ -74,4 +113,66 @@ public class FileRequester implements Runnable {
             throw new RuntimeException(e);
         }
     }
+
+    /** Carry out the file request as a multiplexed stream over the chat connection. */
+    private void runMultiplexed() {
+        MultiplexedInputStream download = null;
+        try (RandomAccessFile existingCopy = openExistingCopy()) {
+            BlockSignatures signatures = (existingCopy != null) ? BlockSignatures.compute(existingCopy) : null;
+            download = streams.openDownload(fileOwner, filename, signatures);
+            receiveFile(new DataInputStream(new BufferedInputStream(download)), existingCopy, signatures);
+        } catch (IOException e) { // The chat connection may have closed.
+            System.out.println(e.getMessage());
+        } finally {
+            try {
+                if (download != null) { streams.closeDownload(download); }
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Open our existing copy of the file, so the owner only has to send changes. The same open file is used to
+     * compute its block signatures and to rebuild the file from the delta, so a download of the same file that
+     * replaces the local file in the meantime can't change the copy under us.
+     *
+     * @return the existing copy open for reading, or null if we don't have one.
+     * @throws IOException if an I/O exception occurs.
+     */
+    private RandomAccessFile openExistingCopy() throws IOException {
+        File localFile = new File(localFilename);
+        return (localFile.isFile() && localFile.length() > 0) ? new RandomAccessFile(localFile, "r") : null;
+    }
+
+    /**
+     * Read the file size, then read the file data, or the changes to our existing copy, and write it
+     * to a temporary file that replaces the local file once it is complete.
+     *
+     * @param in the input stream carrying the file transfer response.
+     * @param existingCopy our existing copy of the file, or null.
+     * @param signatures the block signatures we sent for our existing copy, or null.
+     * @throws IOException if an I/O exception occurs or the transfer is incomplete.
+     */
+    private void receiveFile(DataInputStream in, RandomAccessFile existingCopy, BlockSignatures signatures)
+            throws IOException {
+        long fileSize = in.readLong();
+//            System.out.println(fileSize + "bytes expected"); //! DEBUG
+        if (fileSize == 0) { return; } // Check file size in not zero.
+//            System.out.println("Reading in: " + filename); //! DEBUG
+        File localFile = new File(localFilename);
+        try (PartialFileWriter fileOutput = new PartialFileWriter(localFile, fileSize, settings)) {
+            if (signatures != null) { // Rebuild the file from our existing copy, which stays in place until commit.
+                FileDelta.apply(existingCopy, signatures, in, fileOutput);
+            } else { // Read socket data into buffer and write data to file in pieces:
+                byte[] fileBuffer = new byte[RECEIVE_BUFFER_SIZE];
+                long remaining = fileSize;
+                int bytesReceived;
+                while (remaining > 0
+                        && (bytesReceived = in.read(fileBuffer, 0, (int) Math.min(fileBuffer.length, remaining))) != -1) {
+                    fileOutput.write(fileBuffer, 0, bytesReceived);
+                    remaining -= bytesReceived;
+                }
+            }
+            fileOutput.commit(); // Leave the existing copy alone if the transfer is incomplete.
+        }
+    }
 }
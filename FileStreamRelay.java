@@ -0,0 +1,319 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * A FileStreamRelay connects the two ends of a single file transfer on the chat server when at least
+ * one end is a multiplexed stream over a chat connection. The requester either asked for the file
+ * over its chat connection or over a separate file transfer connection, and the owner either sends the
+ * file over its chat connection or from its file listen server through a {@link ServerFileTransferProxy}.
+ * The relay forwards file data towards the requester, and forwards credit and cancel frames back towards
+ * the owner, so the end-to-end flow control window is always the requester's own window.
+ *
+ * @see ClientDetails
+ * @see ServerFileTransferProxy
+ */
+public class FileStreamRelay {
+
+    /** The requesting client when the file was requested over its chat connection, otherwise null. */
+    private final ClientDetails requester;
+    /** The stream id chosen by the requesting client. */
+    private final int requesterStreamId;
+    /** The requesting client's socket when the file was requested over a separate connection, otherwise null. */
+    private final Socket requesterSocket;
+
+    /** The owning client when the file is sent over its chat connection, otherwise null. */
+    private ClientDetails owner;
+    /** The stream id we chose for the owning client. */
+    private int ownerStreamId;
+    /** The stream a {@link ServerFileTransferProxy} writes to when the owner only has a file listen server. */
+    private MultiplexedOutputStream bridge;
+    /** Writes the owner's data to the requester's socket when a multiplexed owner sends to a socket requester. */
+    private SocketStreamWriter socketWriter;
+
+    private boolean closed = false;
+
+    private FileStreamRelay(ClientDetails requester, int requesterStreamId, Socket requesterSocket) {
+        this.requester = requester;
+        this.requesterStreamId = requesterStreamId;
+        this.requesterSocket = requesterSocket;
+    }
+
+    /**
+     * Creates a FileStreamRelay for a file requested over the requester's chat connection.
+     *
+     * @param requester the requesting client.
+     * @param requesterStreamId the stream id chosen by the requesting client.
+     * @return the new relay.
+     */
+    public static FileStreamRelay forChatRequester(ClientDetails requester, int requesterStreamId) {
+        return new FileStreamRelay(requester, requesterStreamId, null);
+    }
+
+    /**
+     * Creates a FileStreamRelay for a file requested over a separate file transfer connection.
+     *
+     * @param requesterSocket the active socket of the requesting client.
+     * @return the new relay.
+     */
+    public static FileStreamRelay forSocketRequester(Socket requesterSocket) {
+        return new FileStreamRelay(null, 0, requesterSocket);
+    }
+
+    /**
+     * Look up the file owner, then route the file request to them in whichever way they support.
+     * Requests for files the owner's complete shared file catalog doesn't have are answered right away,
+     * and requests from {@link FileTransferRequest#ANY_OWNER} are for a file hash, and go to the least
+     * busy client sharing a file with that hash in the shared file catalog.
+     *
+     * @param fileOwner the username of the client that owns the file, or {@link FileTransferRequest#ANY_OWNER}.
+     * @param filename the name of the requested file, or its hash.
+     * @param signatures the block signatures of the requester's existing copy of the file, or null.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void open(String fileOwner, String filename, BlockSignatures signatures) throws IOException {
+        if (fileOwner.equals(FileTransferRequest.ANY_OWNER)) {
+            FileCatalogIndex.Entry source = null;
+            ClientDetails owner = null;
+            for (FileCatalogIndex.Entry entry : ChatServer.fileCatalog.findByHash(filename)) {
+                ClientDetails candidate;
+                synchronized (ChatServer.clientFileServers) {
+                    candidate = ChatServer.clientFileServers.get(entry.owner);
+                }
+                if (candidate != null && (owner == null || activeStreams(candidate) < activeStreams(owner))) {
+                    source = entry;
+                    owner = candidate;
+                }
+            }
+            open(owner, (source != null) ? source.file.name : filename, signatures);
+            return;
+        }
+
+        ClientDetails owner;
+        synchronized (ChatServer.clientFileServers) {
+            owner = ChatServer.clientFileServers.get(fileOwner); // Get file owner client details.
+        }
+        if (owner != null && !ChatServer.fileCatalog.mayHave(fileOwner, filename)) {
+            sendMissing(); // Reject request: the owner's catalog lists every shared file, and not this one.
+            return;
+        }
+        open(owner, filename, signatures);
+    }
+
+    /**
+     * Route the file request to the owner in whichever way the owner supports.
+     *
+     * @param owner the client that owns the file, or null if there is no such client.
+     * @param filename the name of the requested file.
+     * @param signatures the block signatures of the requester's existing copy of the file, or null.
+     * @throws IOException if an I/O exception occurs.
+     */
+    private void open(ClientDetails owner, String filename, BlockSignatures signatures) throws IOException {
+        if (owner == null) { // Reject request: client username or file doesn't exist.
+            sendMissing();
+        } else if (owner.multiplexed) { // Request the file over the owner's chat connection:
+            this.owner = owner;
+            this.ownerStreamId = owner.nextStreamId();
+            if (requesterSocket != null) { // Write to the requester's socket off the owner's handler thread:
+                socketWriter = new SocketStreamWriter(this, requesterSocket);
+                new Thread(socketWriter).start();
+            }
+            register();
+            try {
+                owner.out.writeFileOpen(ownerStreamId, "", filename, signatures);
+            } catch (IOException e) { // The owner's connection failed, so the requester only gets an empty stream.
+                ownerEnd();
+            }
+        } else if (requester != null) { // Bridge the owner's file listen server onto the requester's stream:
+            bridge = new MultiplexedOutputStream(requester.out, requesterStreamId);
+            register();
+            new Thread(new ServerFileTransferProxy(this, filename, signatures,
+                    owner.address, owner.listenPort)).start();
+        } else { // Neither end is multiplexed, so proxy between the two file transfer connections:
+            new Thread(new ServerFileTransferProxy(requesterSocket, filename, signatures,
+                    owner.address, owner.listenPort)).start();
+        }
+    }
+
+    /**
+     * Turn the request down without asking any owner, the requester sees the same response a missing file gets.
+     *
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void reject() throws IOException {
+        sendMissing();
+    }
+
+    /** @return the stream a {@link ServerFileTransferProxy} should write the owner's response to. */
+    public MultiplexedOutputStream getBridge() {
+        return bridge;
+    }
+
+    /**
+     * Forward a data frame from the owner to the requester.
+     *
+     * @param data the data frame payload.
+     */
+    public void ownerData(byte[] data) {
+        try {
+            if (requester != null) {
+                requester.out.writeFileData(requesterStreamId, data, 0, data.length);
+            } else if (!socketWriter.offer(data)) { // The owner ignored its credit.
+                requesterCancel();
+            }
+        } catch (IOException e) { // The requester went away, stop the owner from sending any more.
+            requesterCancel();
+        }
+    }
+
+    /** Tell the requester the owner finished sending the file. */
+    public void ownerEnd() {
+        if (!finish()) { return; }
+        try {
+            if (requester != null) {
+                requester.out.writeFileEnd(requesterStreamId);
+            } else if (socketWriter != null) {
+                socketWriter.finish(); // Closes the socket once the queued data is written.
+            } else {
+                requesterSocket.shutdownOutput();
+                requesterSocket.close();
+            }
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Forward credit from the requester to whichever end is sending the file.
+     *
+     * @param credit the number of bytes the requester consumed.
+     */
+    public void requesterCredit(int credit) {
+        try {
+            if (owner != null) {
+                owner.out.writeFileCredit(ownerStreamId, credit);
+            } else if (bridge != null) {
+                bridge.grantCredit(credit);
+            }
+        } catch (IOException ignored) { } // The owner's handler cleans up when its connection fails.
+    }
+
+    /**
+     * Grant the owner credit for data the {@link SocketStreamWriter} wrote to the requester's socket.
+     *
+     * @param credit the number of bytes written.
+     */
+    public void requesterDrained(int credit) {
+        try {
+            owner.out.writeFileCredit(ownerStreamId, credit);
+        } catch (IOException ignored) { } // The owner's handler cleans up when its connection fails.
+    }
+
+    /** Tell whichever end is sending the file that the requester no longer wants it. */
+    public void requesterCancel() {
+        if (!finish()) { return; }
+        try {
+            if (owner != null) {
+                owner.out.writeFileCancel(ownerStreamId);
+            } else if (bridge != null) {
+                bridge.cancel();
+            }
+            if (socketWriter != null) { socketWriter.cancel(); }
+            if (requesterSocket != null) { requesterSocket.close(); }
+        } catch (IOException ignored) { }
+    }
+
+    /** Called by the {@link ServerFileTransferProxy} after it finished writing to the bridge stream. */
+    public void bridgeFinished() {
+        finish();
+    }
+
+    /**
+     * Close the relay after one of its clients left the chat. The requester sees the end of its stream
+     * when the owner leaves, and the owner is told to stop sending when the requester leaves.
+     *
+     * @param client the client that disconnected.
+     */
+    public void disconnected(ClientDetails client) {
+        if (client == owner) {
+            ownerEnd();
+        } else {
+            requesterCancel();
+        }
+    }
+
+    /**
+     * Close every relay the client is part of after it leaves the chat.
+     *
+     * @param client the client that disconnected.
+     */
+    public static void disconnectAll(ClientDetails client) {
+        ArrayList<FileStreamRelay> relays = new ArrayList<>();
+        synchronized (client.requestedStreams) {
+            relays.addAll(client.requestedStreams.values());
+        }
+        synchronized (client.ownedStreams) {
+            relays.addAll(client.ownedStreams.values());
+        }
+        for (FileStreamRelay relay : relays) {
+            relay.disconnected(client);
+        }
+    }
+
+    /** @return the number of file streams currently open to the client as the file owner. */
+    private static int activeStreams(ClientDetails client) {
+        synchronized (client.ownedStreams) {
+            return client.ownedStreams.size();
+        }
+    }
+
+    /** Answer the requester with a file size of zero, the same response a missing file gets. */
+    private void sendMissing() throws IOException {
+        if (requester != null) {
+            requester.out.writeFileData(requesterStreamId, new byte[Long.BYTES], 0, Long.BYTES);
+            requester.out.writeFileEnd(requesterStreamId);
+        } else {
+            DataOutputStream socketOut = new DataOutputStream(requesterSocket.getOutputStream());
+            socketOut.writeLong(0L);
+
+            requesterSocket.shutdownOutput();
+            requesterSocket.close();
+        }
+    }
+
+    /** Track the relay on its clients, so frames and disconnects from either client can find it. */
+    private void register() {
+        if (requester != null) {
+            synchronized (requester.requestedStreams) {
+                requester.requestedStreams.put(requesterStreamId, this);
+            }
+        }
+        if (owner != null) {
+            synchronized (owner.ownedStreams) {
+                owner.ownedStreams.put(ownerStreamId, this);
+            }
+        }
+    }
+
+    /**
+     * Mark the relay closed and stop tracking it on its clients.
+     *
+     * @return true if the relay was open, false if it was already closed.
+     */
+    private boolean finish() {
+        synchronized (this) {
+            if (closed) { return false; }
+            closed = true;
+        }
+        if (requester != null) {
+            synchronized (requester.requestedStreams) {
+                requester.requestedStreams.remove(requesterStreamId);
+            }
+        }
+        if (owner != null) {
+            synchronized (owner.ownedStreams) {
+                owner.ownedStreams.remove(ownerStreamId);
+            }
+        }
+        return true;
+    }
+}
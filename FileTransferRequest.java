@@ -8,14 +8,20 @@
  */
 public class FileTransferRequest extends Request implements java.io.Serializable {
 
+    /** Owner name that requests a file by its hash, from any client sharing it, instead of by name. */
+    public static final String ANY_OWNER = "*";
+
     /** The username of the chat client that has the requested file. */
     public final String fileOwner;
     /** The name of the file we would like to request. */
     public final String filename;
+    /** The block signatures of our existing copy of the file, so only changes are sent, or null. */
+    public final BlockSignatures signatures;
 
-    public FileTransferRequest(String fileOwner, String filename) {
+    public FileTransferRequest(String fileOwner, String filename, BlockSignatures signatures) {
         super(RequestType.FILE_REQUEST);
         this.fileOwner = fileOwner;
         this.filename = filename;
+        this.signatures = signatures;
     }
 }
@@ -0,0 +1,376 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A FrameOutput writes typed frames over an established chat {@link java.net.Socket} connection.
+ * Every frame starts with a {@link FrameType} byte followed by the fields for that type, so chat
+ * messages and multiplexed file transfer streams can share the one connection. Each frame is
+ * written and flushed as a single unit, which makes a FrameOutput safe to share between the
+ * threads that send messages, file data, and flow control updates on the same socket.
+ * <br><br>
+ * File data is split into frames of at most {@link #MAX_DATA_LENGTH} bytes, and the write lock is
+ * fair, so a chat message waiting behind a large transfer only ever waits for one data frame.
+ * Long chat messages are split into message chunks the same way, so they don't hold up anyone else's messages.
+ *
+ * @see FrameType
+ * @see MultiplexedOutputStream
+ */
+public class FrameOutput {
+
+    /** The largest number of file bytes carried in a single data frame. */
+    public static final int MAX_DATA_LENGTH = 8 * 1024;
+    /** The number of unacknowledged bytes a file stream may have in flight before waiting for credit. */
+    public static final int STREAM_WINDOW = 256 * 1024;
+    /** The longest message the server forwards in UTF-8 bytes, longer messages are aborted. */
+    public static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+    /** Message chunk flag: the first chunk of a message. */
+    public static final int CHUNK_FIRST = 1;
+    /** Message chunk flag: the last chunk of a message, the message is complete. */
+    public static final int CHUNK_LAST = 2;
+    /** Message chunk flag: the message was abandoned and its chunks should be discarded. */
+    public static final int CHUNK_ABORT = 4;
+    /** Messages longer than this many characters are sent in chunks, since each one may take up to 3 bytes. */
+    private static final int MAX_SINGLE_FRAME_CHARS = MAX_DATA_LENGTH / 3;
+    /** Message ids are unique across every connection, so the server can forward chunks with its own ids. */
+    private static final AtomicInteger nextMessageId = new AtomicInteger(1);
+
+    private final DataOutputStream socketOut;
+    /** Fair lock so threads take turns writing frames in the order they started waiting. */
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    /** Set when a ping was asked for, and cleared by whichever thread writes it while holding the write lock. */
+    private volatile boolean pingPending = false;
+
+    /**
+     * Creates a FrameOutput that writes frames to the supplied socket output stream.
+     *
+     * @param socketOut the output stream of the active chat {@link java.net.Socket} connection.
+     */
+    public FrameOutput(OutputStream socketOut) {
+        this.socketOut = new DataOutputStream(new BufferedOutputStream(socketOut, MAX_DATA_LENGTH + 16));
+    }
+
+    /**
+     * Send a chat message. Long messages, including ones over the 64KB limit of a single
+     * {@link DataOutputStream#writeUTF} string, are sent as a series of message chunks.
+     *
+     * @param message the message text.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeMessage(String message) throws IOException {
+        if (message.length() > MAX_SINGLE_FRAME_CHARS) {
+            writeChunkedMessage(message.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.MESSAGE.ordinal());
+            socketOut.writeUTF(message);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Send a message as UTF-8 in chunks of at most {@link #MAX_DATA_LENGTH} bytes. The lock is taken for
+     * each chunk, so frames from other threads go out between the chunks of a long message.
+     *
+     * @param message the UTF-8 bytes of the message.
+     * @throws IOException if an I/O exception occurs.
+     */
+    private void writeChunkedMessage(byte[] message) throws IOException {
+        int messageId = newMessageId();
+        int offset = 0;
+        do {
+            int length = Math.min(MAX_DATA_LENGTH, message.length - offset);
+            int flags = (offset == 0 ? CHUNK_FIRST : 0) | (offset + length == message.length ? CHUNK_LAST : 0);
+            writeMessageChunk(messageId, flags, message, offset, length);
+            offset += length;
+        } while (offset < message.length);
+    }
+
+    /** @return a new id for a long message, unique within this application. */
+    public static int newMessageId() {
+        return nextMessageId.getAndIncrement();
+    }
+
+    /**
+     * Send a piece of a long chat message. Chunks of the same message are sent in order, and pieces
+     * of the UTF-8 text may split a character, so the message is only decoded once it is complete.
+     *
+     * @param messageId the id of the message, chosen by the side sending it.
+     * @param flags the {@link #CHUNK_FIRST}, {@link #CHUNK_LAST}, and {@link #CHUNK_ABORT} flags of the chunk.
+     * @param data buffer holding the piece of the message.
+     * @param offset the start offset of the piece in the buffer.
+     * @param length the length of the piece, at most {@link #MAX_DATA_LENGTH} bytes.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeMessageChunk(int messageId, int flags, byte[] data, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.MESSAGE_CHUNK.ordinal());
+            socketOut.writeInt(messageId);
+            socketOut.writeByte(flags);
+            socketOut.writeInt(length);
+            socketOut.write(data, offset, length);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Open a new file transfer stream.
+     *
+     * @param streamId the id of the new stream, chosen by the side receiving the file data.
+     * @param fileOwner the username of the client that owns the file, or empty when sent to the owner.
+     * @param filename the name of the requested file.
+     * @param signatures the block signatures of the requester's existing copy of the file, or null.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeFileOpen(int streamId, String fileOwner, String filename, BlockSignatures signatures)
+            throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.FILE_OPEN.ordinal());
+            socketOut.writeInt(streamId);
+            socketOut.writeUTF(fileOwner);
+            socketOut.writeUTF(filename);
+            BlockSignatures.writeOptional(signatures, socketOut);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Send a piece of file stream data. Callers must split data into pieces of at
+     * most {@link #MAX_DATA_LENGTH} bytes.
+     *
+     * @param streamId the id of the file stream.
+     * @param data buffer holding the data.
+     * @param offset the start offset of the data in the buffer.
+     * @param length the number of bytes to send.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeFileData(int streamId, byte[] data, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.FILE_DATA.ordinal());
+            socketOut.writeInt(streamId);
+            socketOut.writeInt(length);
+            socketOut.write(data, offset, length);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Grant the sending side of a file stream permission to send more data.
+     *
+     * @param streamId the id of the file stream.
+     * @param credit the number of bytes consumed since the last credit update.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeFileCredit(int streamId, int credit) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.FILE_CREDIT.ordinal());
+            socketOut.writeInt(streamId);
+            socketOut.writeInt(credit);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Close a file stream after all of its data has been sent.
+     *
+     * @param streamId the id of the file stream.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeFileEnd(int streamId) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.FILE_END.ordinal());
+            socketOut.writeInt(streamId);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Cancel a file stream from the receiving side, telling the sending side to stop.
+     *
+     * @param streamId the id of the file stream.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeFileCancel(int streamId) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.FILE_CANCEL.ordinal());
+            socketOut.writeInt(streamId);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Ask the other side to prove the connection is still alive, without waiting for the write lock. If another
+     * frame is being written, the thread writing it sends the ping as it releases the lock, so a ping is never
+     * lost to a busy connection, and a write stuck on a dead connection never holds up the thread sending pings
+     * to every other client.
+     */
+    public void writePing() {
+        pingPending = true;
+        writePendingPing();
+    }
+
+    /**
+     * Answer a ping from the other side.
+     *
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writePong() throws IOException {
+        writeEmptyFrame(FrameType.PONG);
+    }
+
+    /**
+     * Add or replace a file in our catalog of shared files on the server.
+     *
+     * @param file the added or changed file.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeCatalogAdd(SharedFile file) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.CATALOG_ADD.ordinal());
+            file.write(socketOut);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Remove a file from our catalog of shared files on the server.
+     *
+     * @param filename the name of the removed file.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeCatalogRemove(String filename) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.CATALOG_REMOVE.ordinal());
+            socketOut.writeUTF(filename);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Tell the server a rescan of our shared files finished, after the catalog frames for its changes.
+     *
+     * @param complete true if the catalog lists every shared file, so the server may answer requests
+     *                 for other files as missing without asking us.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeCatalogSynced(boolean complete) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.CATALOG_SYNCED.ordinal());
+            socketOut.writeBoolean(complete);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Search the shared files of every chat client by name.
+     *
+     * @param query the text to search for in file names.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeSearch(String query) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.SEARCH.ordinal());
+            socketOut.writeUTF(query);
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Answer a search with the matching shared files.
+     *
+     * @param results the matching catalog entries.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void writeSearchResults(List<FileCatalogIndex.Entry> results) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(FrameType.SEARCH_RESULTS.ordinal());
+            socketOut.writeInt(results.size());
+            for (FileCatalogIndex.Entry result : results) {
+                socketOut.writeUTF(result.owner);
+                result.file.write(socketOut);
+            }
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Write a frame that is only its type byte. */
+    private void writeEmptyFrame(FrameType type) throws IOException {
+        writeLock.lock();
+        try {
+            socketOut.writeByte(type.ordinal());
+            socketOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Release the write lock, first writing a ping that was asked for while the lock was held. */
+    private void unlock() {
+        flushPendingPing();
+        writeLock.unlock();
+        writePendingPing(); // A ping asked for just as the lock was released.
+    }
+
+    /** Write the pending ping unless another thread holds the write lock, which then writes it as it unlocks. */
+    private void writePendingPing() {
+        while (pingPending && writeLock.tryLock()) {
+            try {
+                flushPendingPing();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /** Write the pending ping, if there is one, while holding the write lock. */
+    private void flushPendingPing() {
+        if (!pingPending) { return; }
+        pingPending = false;
+        try {
+            socketOut.writeByte(FrameType.PING.ordinal());
+            socketOut.flush();
+        } catch (IOException ignored) { } // The next write fails too, or the idle timeout removes the client.
+    }
+}
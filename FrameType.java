@@ -0,0 +1,22 @@
+import java.io.IOException;
+
+/** Enum defines the type of each frame sent over an established chat connection. */
+public enum FrameType {
+        MESSAGE, FILE_OPEN, FILE_DATA, FILE_CREDIT, FILE_END, FILE_CANCEL, PING, PONG,
+        CATALOG_ADD, CATALOG_REMOVE, SEARCH, SEARCH_RESULTS, MESSAGE_CHUNK, CATALOG_SYNCED;
+
+    /**
+     * Look up the frame type for a type byte read from the socket.
+     *
+     * @param typeByte the type byte that starts every frame.
+     * @return the matching frame type.
+     * @throws IOException if the byte doesn't match a known frame type.
+     */
+    public static FrameType fromByte(int typeByte) throws IOException {
+        FrameType[] types = values();
+        if (typeByte < 0 || typeByte >= types.length) {
+            throw new IOException("Unknown frame type: " + typeByte);
+        }
+        return types[typeByte];
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A HashedTimerWheel runs delayed tasks using a single thread and a fixed ring of buckets, instead of
+ * one timer per task. Each tick the wheel advances one bucket and runs the tasks in it that are due,
+ * so scheduling and cancelling are constant time no matter how many tasks are pending. This makes it
+ * cheap to keep a timeout for every connected chat client. Tasks run on the wheel thread, so they
+ * should be short and must never block on a socket.
+ * <br><br>
+ * Timing is only as precise as the tick duration, tasks run on the first tick at or after their deadline.
+ *
+ * @see HeartbeatMonitor
+ */
+public class HashedTimerWheel implements Runnable {
+
+    /** A scheduled task that can be cancelled before it runs. */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** Cancel the task so it never runs. */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickMillis;
+    private final ArrayList<ArrayList<Timeout>> buckets;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private long tick = 0;
+
+    /** Timeouts scheduled by other threads, added to the buckets by the wheel thread on the next tick. */
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a HashedTimerWheel. Call {@link #start()} to begin ticking.
+     *
+     * @param tickMillis the duration of one tick in milliseconds.
+     * @param wheelSize the number of buckets, rounded up to a power of two.
+     */
+    public HashedTimerWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+    }
+
+    /** Start the wheel on a background daemon thread. */
+    public void start() {
+        Thread wheelThread = new Thread(this, "timer-wheel");
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+    /**
+     * Schedule a task to run once after a delay.
+     *
+     * @param task the task to run on the wheel thread.
+     * @param delayMillis the delay in milliseconds.
+     * @return the handle to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, elapsedMillis() + Math.max(0, delayMillis));
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /** Tick forever, running due tasks from each bucket in turn. */
+    @Override
+    @SuppressWarnings("InfiniteLoopStatement")
+    public void run() {
+        while (true) {
+            waitForNextTick();
+            addNewTimeouts();
+            expireTimeouts(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    /** Sleep until the start of the next tick. */
+    private void waitForNextTick() {
+        long nextTickMillis = (tick + 1) * tickMillis;
+        long sleepMillis;
+        while ((sleepMillis = nextTickMillis - elapsedMillis()) > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException ignored) { }
+        }
+    }
+
+    /** Move timeouts scheduled since the last tick into the bucket for their deadline. */
+    private void addNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.cancelled) { continue; }
+            long deadlineTick = Math.max(timeout.deadline / tickMillis, tick); // Never schedule into the past.
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.size();
+            buckets.get((int) (deadlineTick & mask)).add(timeout);
+        }
+    }
+
+    /** Run the due tasks in the bucket, and count down a round for the rest. */
+    private void expireTimeouts(ArrayList<Timeout> bucket) {
+        ArrayList<Timeout> due = new ArrayList<>();
+        int kept = 0;
+        for (Timeout timeout : bucket) {
+            if (timeout.cancelled) { continue; }
+            if (timeout.remainingRounds <= 0) {
+                due.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+
+        for (Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (Exception e) { // Never let one task stop the wheel.
+                ChatServer.log.warn("Timer task failed: " + e);
+            }
+        }
+    }
+
+    /** @return milliseconds since the wheel was created. */
+    private long elapsedMillis() {
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+}
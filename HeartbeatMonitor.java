@@ -0,0 +1,67 @@
+/**
+ * A HeartbeatMonitor finds and removes dead chat client connections. A socket stays connected after the
+ * peer vanishes without closing it, so instead the monitor tracks when each client last sent a frame.
+ * A client that has been quiet for the ping interval is sent a ping, which a live client answers with a
+ * pong, and a client that stays quiet for the idle timeout is removed from the chat and its socket is
+ * closed. Each client has a single pending check in a shared {@link HashedTimerWheel}, so monitoring
+ * many clients costs one timer thread.
+ *
+ * @see HashedTimerWheel
+ */
+public class HeartbeatMonitor {
+
+    /** The duration of one timer wheel tick, which bounds how precise the intervals are. */
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final long pingIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final HashedTimerWheel timerWheel = new HashedTimerWheel(TICK_MILLIS, WHEEL_SIZE);
+
+    /**
+     * Creates a HeartbeatMonitor and starts its timer wheel.
+     *
+     * @param pingIntervalMillis how long a client may be quiet before we ping it.
+     * @param idleTimeoutMillis how long a client may be quiet before we remove it, longer than the ping interval.
+     */
+    public HeartbeatMonitor(long pingIntervalMillis, long idleTimeoutMillis) {
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        timerWheel.start();
+    }
+
+    /**
+     * Start monitoring a newly joined client.
+     *
+     * @param client the client to monitor.
+     */
+    public void watch(ClientDetails client) {
+        client.recordActivity();
+        timerWheel.schedule(() -> check(client), pingIntervalMillis);
+    }
+
+    /**
+     * Check how long the client has been quiet, then ping it, remove it, or check again later.
+     * Runs on the timer wheel thread.
+     */
+    private void check(ClientDetails client) {
+        if (client.socket.isClosed()) { return; } // The client already left, stop monitoring it.
+
+        long idleMillis = System.currentTimeMillis() - client.getLastActivity();
+        if (idleMillis >= idleTimeoutMillis) { // Reap the dead connection:
+            ChatServer.log.info(client.username + " timed out");
+            client.disconnect(); // Closing the socket makes its handler remove the client from the chat.
+            return;
+        }
+
+        long nextCheckMillis;
+        if (idleMillis >= pingIntervalMillis) {
+            // Never blocks: a ping that can't be written right away is sent by the thread holding the write lock.
+            client.out.writePing();
+            nextCheckMillis = idleTimeoutMillis - idleMillis;
+        } else {
+            nextCheckMillis = pingIntervalMillis - idleMillis;
+        }
+        timerWheel.schedule(() -> check(client), nextCheckMillis);
+    }
+}
@@ -10,12 +10,15 @@ public class JoinChatRequest extends Request implements java.io.Serializable {
 
     /** The requested chat username for our client. */
     public final String username;
-    /** The port of the active file listen server on the chat client. */
+    /** The port of the active file listen server on the chat client, or -1 if it doesn't have one. */
     public final int clientListenPort;
+    /** True if the chat client sends and receives file transfers multiplexed over the chat connection. */
+    public final boolean multiplexed;
 
-    public JoinChatRequest(String username, int clientListenPort) {
+    public JoinChatRequest(String username, int clientListenPort, boolean multiplexed) {
         super(RequestType.JOIN_CHAT);
         this.username = username;
         this.clientListenPort = clientListenPort;
+        this.multiplexed = multiplexed;
     }
 }
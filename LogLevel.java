@@ -0,0 +1,4 @@
+/** Enum defines the severity of a {@link ServerLog} record, from least to most severe. */
+public enum LogLevel {
+        DEBUG, INFO, WARN, ERROR
+}
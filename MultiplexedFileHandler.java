@@ -0,0 +1,58 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A MultiplexedFileHandler answers a single file request that the chat server sent over our chat
+ * connection, instead of over a separate connection to a {@link FileRequestHandler} listen server.
+ * The file is sent with {@link FileRequestHandler#sendFile} through a flow controlled
+ * {@link MultiplexedOutputStream}. MultiplexedFileHandler also implements the {@link Runnable} interface
+ * so the transfer can run on a separate thread while the client keeps sending and receiving messages.
+ *
+ * @see Runnable
+ * @see FileRequestHandler
+ * @see MultiplexedStreams
+ */
+public class MultiplexedFileHandler implements Runnable {
+
+    private final MultiplexedStreams streams;
+    private final MultiplexedOutputStream upload;
+    private final int streamId;
+    private final String filename;
+    private final BlockSignatures signatures;
+
+    /**
+     * Creates a MultiplexedFileHandler that sends the requested file over an upload stream.
+     *
+     * @param streams the stream table of the chat connection.
+     * @param streamId the stream id chosen by the server.
+     * @param filename the name of the requested file.
+     * @param signatures the block signatures of the requester's existing copy of the file, or null.
+     */
+    public MultiplexedFileHandler(MultiplexedStreams streams, int streamId, String filename,
+                                  BlockSignatures signatures) {
+        this.streams = streams;
+        this.upload = streams.acceptUpload(streamId); // Register now so credit and cancel frames can find the stream.
+        this.streamId = streamId;
+        this.filename = filename;
+        this.signatures = signatures;
+    }
+
+    /**
+     * Execute MultiplexedFileHandler functionality to read in the requested file and send it over the
+     * upload stream. Close the stream when the transfer is complete.
+     */
+    @Override
+    public void run() {
+        try {
+            DataOutputStream streamOut = new DataOutputStream(
+                    new BufferedOutputStream(upload, FrameOutput.MAX_DATA_LENGTH));
+            FileRequestHandler.sendFile(filename, signatures, streamOut);
+            streamOut.flush();
+            upload.close();
+        } catch (IOException ignored) { // The requester cancelled or the chat connection closed.
+        } finally {
+            streams.closeUpload(streamId);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * A MultiplexedInputStream reads file data that arrives as data frames for a single logical stream
+ * over a shared chat connection. The thread reading the chat connection hands each data frame to the
+ * stream, and the stream grants credit back to the sending side as the data is consumed. Because the
+ * sender never has more than {@link FrameOutput#STREAM_WINDOW} bytes in flight, handing off frames
+ * never blocks the thread reading the chat connection.
+ *
+ * @see MultiplexedOutputStream
+ * @see FrameOutput
+ */
+public class MultiplexedInputStream extends InputStream {
+
+    /** Consumed bytes are acknowledged in batches of this size to keep credit frames infrequent. */
+    private static final int CREDIT_BATCH = FrameOutput.STREAM_WINDOW / 4;
+
+    private final FrameOutput frameOut;
+    private final int streamId;
+
+    private final ArrayDeque<byte[]> pendingData = new ArrayDeque<>();
+    private byte[] currentData;
+    private int currentPosition;
+    private int unacknowledged = 0;
+    private boolean ended = false;
+    private boolean closed = false;
+
+    /**
+     * Creates a MultiplexedInputStream that receives the data frames of a single file stream.
+     *
+     * @param frameOut the {@link FrameOutput} of the shared chat connection, used to grant credit.
+     * @param streamId the id of the file stream.
+     */
+    public MultiplexedInputStream(FrameOutput frameOut, int streamId) {
+        this.frameOut = frameOut;
+        this.streamId = streamId;
+    }
+
+    /** @return the id of the file stream. */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Queue a data frame received from the chat connection.
+     *
+     * @param data the data frame payload.
+     */
+    public synchronized void receive(byte[] data) {
+        if (closed) { return; }
+        pendingData.add(data);
+        notifyAll();
+    }
+
+    /** Mark the end of the stream after the sending side has sent all of its data. */
+    public synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) { return 0; }
+
+        int bytesRead;
+        int credit = 0;
+        synchronized (this) {
+            try {
+                while (currentData == null || currentPosition == currentData.length) {
+                    if (!pendingData.isEmpty()) {
+                        currentData = pendingData.poll();
+                        currentPosition = 0;
+                    } else if (ended || closed) {
+                        return -1;
+                    } else {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for file stream data");
+            }
+
+            bytesRead = Math.min(length, currentData.length - currentPosition);
+            System.arraycopy(currentData, currentPosition, buffer, offset, bytesRead);
+            currentPosition += bytesRead;
+
+            unacknowledged += bytesRead;
+            if (unacknowledged >= CREDIT_BATCH) {
+                credit = unacknowledged;
+                unacknowledged = 0;
+            }
+        }
+
+        // Grant credit outside the lock so the connection reader is never held up behind a socket write.
+        if (credit > 0 && !ended) {
+            frameOut.writeFileCredit(streamId, credit);
+        }
+        return bytesRead;
+    }
+
+    /** Close the stream, cancelling the transfer on the sending side if it hasn't finished. */
+    @Override
+    public void close() throws IOException {
+        boolean cancel;
+        synchronized (this) {
+            if (closed) { return; }
+            closed = true;
+            cancel = !ended;
+            pendingData.clear();
+            notifyAll();
+        }
+        if (cancel) {
+            frameOut.writeFileCancel(streamId);
+        }
+    }
+}
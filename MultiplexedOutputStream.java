@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A MultiplexedOutputStream sends file data as a logical stream over a shared chat connection using
+ * a {@link FrameOutput}. Data is split into data frames, and the stream only sends as much data as the
+ * receiving side has granted credit for, so a slow receiver can never make a transfer buffer unbounded
+ * amounts of data or take over the shared connection.
+ *
+ * @see MultiplexedInputStream
+ * @see FrameOutput
+ */
+public class MultiplexedOutputStream extends OutputStream {
+
+    private final FrameOutput frameOut;
+    private final int streamId;
+
+    /** The number of bytes we are still allowed to send before waiting for more credit. */
+    private int credit = FrameOutput.STREAM_WINDOW;
+    private boolean cancelled = false;
+    private boolean closed = false;
+
+    /**
+     * Creates a MultiplexedOutputStream that sends data frames for a single file stream.
+     *
+     * @param frameOut the {@link FrameOutput} of the shared chat connection.
+     * @param streamId the id of the file stream.
+     */
+    public MultiplexedOutputStream(FrameOutput frameOut, int streamId) {
+        this.frameOut = frameOut;
+        this.streamId = streamId;
+    }
+
+    /**
+     * Add credit granted by the receiving side and wake up a waiting writer.
+     *
+     * @param bytes the number of additional bytes we may send.
+     */
+    public synchronized void grantCredit(int bytes) {
+        credit += bytes;
+        notifyAll();
+    }
+
+    /** Cancel the stream because the receiving side went away, failing any current or future writes. */
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int frameLength = acquireCredit(Math.min(length, FrameOutput.MAX_DATA_LENGTH));
+            frameOut.writeFileData(streamId, data, offset, frameLength);
+            offset += frameLength;
+            length -= frameLength;
+        }
+    }
+
+    /** Close the stream and tell the receiving side there is no more data. */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed || cancelled) { return; }
+            closed = true;
+        }
+        frameOut.writeFileEnd(streamId);
+    }
+
+    /**
+     * Wait until we have credit to send data, then take as much of the wanted amount as we can.
+     *
+     * @param wanted the number of bytes we would like to send.
+     * @return the number of bytes we can send now.
+     * @throws IOException if the stream is cancelled or interrupted while waiting.
+     */
+    private synchronized int acquireCredit(int wanted) throws IOException {
+        try {
+            while (credit <= 0 && !cancelled) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for file stream credit");
+        }
+        if (cancelled || closed) { throw new IOException("File stream " + streamId + " was closed"); }
+
+        int granted = Math.min(wanted, credit);
+        credit -= granted;
+        return granted;
+    }
+}
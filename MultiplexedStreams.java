@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * MultiplexedStreams tracks the file transfer streams a chat client has open over its chat server
+ * connection. Downloads are the streams this client requested and receives data for, and uploads are
+ * the streams the server opened to request one of our files. The {@link Receiver} uses the table to
+ * hand incoming frames to the right stream.
+ *
+ * @see MultiplexedInputStream
+ * @see MultiplexedOutputStream
+ */
+public class MultiplexedStreams {
+
+    private final FrameOutput frameOut;
+    private int nextStreamId = 1;
+
+    /** Streams we requested, keyed by the stream id we chose. */
+    private final HashMap<Integer, MultiplexedInputStream> downloads = new HashMap<>();
+    /** Streams the server requested from us, keyed by the stream id the server chose. */
+    private final HashMap<Integer, MultiplexedOutputStream> uploads = new HashMap<>();
+
+    /**
+     * Creates an empty stream table for the chat connection.
+     *
+     * @param frameOut the {@link FrameOutput} of the chat server connection.
+     */
+    public MultiplexedStreams(FrameOutput frameOut) {
+        this.frameOut = frameOut;
+    }
+
+    /** @return the {@link FrameOutput} of the chat server connection. */
+    public FrameOutput getFrameOutput() {
+        return frameOut;
+    }
+
+    /**
+     * Open a new download stream and send the file request to the server.
+     *
+     * @param fileOwner the username of the client that owns the file.
+     * @param filename the name of the requested file.
+     * @param signatures the block signatures of our existing copy of the file, or null.
+     * @return the stream the file data will arrive on.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public MultiplexedInputStream openDownload(String fileOwner, String filename, BlockSignatures signatures)
+            throws IOException {
+        MultiplexedInputStream download;
+        synchronized (downloads) {
+            download = new MultiplexedInputStream(frameOut, nextStreamId++);
+            downloads.put(download.getStreamId(), download);
+        }
+        frameOut.writeFileOpen(download.getStreamId(), fileOwner, filename, signatures);
+        return download;
+    }
+
+    /**
+     * Stop tracking a download after the requester is done with it.
+     *
+     * @param download the finished download stream.
+     */
+    public void closeDownload(MultiplexedInputStream download) throws IOException {
+        synchronized (downloads) {
+            downloads.remove(download.getStreamId());
+        }
+        download.close();
+    }
+
+    /**
+     * Start tracking an upload stream the server opened for one of our files.
+     *
+     * @param streamId the stream id chosen by the server.
+     * @return the stream to write the file data to.
+     */
+    public MultiplexedOutputStream acceptUpload(int streamId) {
+        MultiplexedOutputStream upload = new MultiplexedOutputStream(frameOut, streamId);
+        synchronized (uploads) {
+            uploads.put(streamId, upload);
+        }
+        return upload;
+    }
+
+    /**
+     * Stop tracking an upload once all of its data has been sent.
+     *
+     * @param streamId the stream id chosen by the server.
+     */
+    public void closeUpload(int streamId) {
+        synchronized (uploads) {
+            uploads.remove(streamId);
+        }
+    }
+
+    /** Hand a received data frame to its download stream. */
+    public void receiveData(int streamId, byte[] data) {
+        MultiplexedInputStream download;
+        synchronized (downloads) {
+            download = downloads.get(streamId);
+        }
+        if (download != null) { download.receive(data); }
+    }
+
+    /** Hand a received end frame to its download stream. */
+    public void receiveEnd(int streamId) {
+        MultiplexedInputStream download;
+        synchronized (downloads) {
+            download = downloads.get(streamId);
+        }
+        if (download != null) { download.end(); }
+    }
+
+    /** Hand a received cancel frame to its upload stream. */
+    public void receiveCancel(int streamId) {
+        MultiplexedOutputStream upload;
+        synchronized (uploads) {
+            upload = uploads.remove(streamId);
+        }
+        if (upload != null) { upload.cancel(); }
+    }
+
+    /** Hand a received credit frame to its upload stream. */
+    public void receiveCredit(int streamId, int credit) {
+        MultiplexedOutputStream upload;
+        synchronized (uploads) {
+            upload = uploads.get(streamId);
+        }
+        if (upload != null) { upload.grantCredit(credit); }
+    }
+}
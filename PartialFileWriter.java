@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * A PartialFileWriter writes a download of a known size to a temporary file next to the local file,
+ * then atomically renames it into place with {@link #commit()}, so nobody ever sees a half written file.
+ * Each download gets its own uniquely named temporary file, so concurrent downloads of the same file
+ * never write to each other's file.
+ * The temporary file is extended to the full size up front, data is collected in a large buffer and
+ * written with positional {@link FileChannel} writes, and the file is synced to disk according to the
+ * {@link SyncPolicy}. Closing the writer without committing deletes the temporary file.
+ *
+ * @see FileRequester
+ * @see DownloadSettings
+ */
+public class PartialFileWriter extends OutputStream {
+
+    /** Suffix of the temporary files downloads are written to before they replace the local file. */
+    public static final String PARTIAL_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File localFile;
+    private final File partialFile;
+    private final long fileSize;
+    private final DownloadSettings settings;
+
+    private final RandomAccessFile partialAccess;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final long startNanos = System.nanoTime();
+    /** The file position the buffered data will be written to. */
+    private long position = 0;
+    private long unsyncedBytes = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a PartialFileWriter and allocates the temporary file.
+     *
+     * @param localFile the local file the download will replace.
+     * @param fileSize the size of the complete download.
+     * @param settings the sync policy and progress listener to use.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public PartialFileWriter(File localFile, long fileSize, DownloadSettings settings) throws IOException {
+        this.localFile = localFile;
+        this.partialFile = Files.createTempFile(localFile.getAbsoluteFile().getParentFile().toPath(),
+                localFile.getName(), PARTIAL_SUFFIX).toFile();
+        this.fileSize = fileSize;
+        this.settings = settings;
+
+        this.partialAccess = new RandomAccessFile(partialFile, "rw");
+        try {
+            partialAccess.setLength(fileSize); // Allocate the full size up front instead of growing with each write.
+        } catch (IOException e) {
+            partialAccess.close();
+            Files.deleteIfExists(partialFile.toPath());
+            throw e;
+        }
+        this.channel = partialAccess.getChannel();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (position + buffer.position() + length > fileSize) {
+            throw new IOException("Received more than the expected " + fileSize + " bytes of " + localFile.getName());
+        }
+        while (length > 0) {
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+            if (!buffer.hasRemaining()) { writeBuffer(); }
+        }
+    }
+
+    /**
+     * Finish the download: check the whole file was received, sync it according to the policy,
+     * and atomically replace the local file with it.
+     *
+     * @throws IOException if the download is incomplete or an I/O exception occurs.
+     */
+    public void commit() throws IOException {
+        writeBuffer();
+        if (position != fileSize) {
+            throw new IOException("Incomplete transfer of " + localFile.getName() + ": "
+                    + position + " of " + fileSize + " bytes");
+        }
+        if (settings.syncPolicy != SyncPolicy.NEVER) {
+            channel.force(true);
+        }
+        partialAccess.close();
+
+        Path partialPath = partialFile.toPath();
+        Path localPath = localFile.toPath();
+        copyPermissions(partialPath, localPath);
+        try {
+            Files.move(partialPath, localPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partialPath, localPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        closed = true; // Only once the move succeeded, otherwise close() still deletes the temporary file.
+
+        if (settings.progressListener != null) {
+            settings.progressListener.onComplete(localFile.getName(), fileSize, System.nanoTime() - startNanos);
+        }
+    }
+
+    /** Abandon the download if it wasn't committed, deleting the temporary file. */
+    @Override
+    public void close() throws IOException {
+        if (closed) { return; }
+        closed = true;
+        partialAccess.close();
+        Files.deleteIfExists(partialFile.toPath());
+    }
+
+    /**
+     * Temporary files are only readable by their owner, so give the download the permissions of the file
+     * it replaces, or the usual permissions of a new file.
+     */
+    private static void copyPermissions(Path partialPath, Path localPath) throws IOException {
+        if (!Files.getFileStore(partialPath).supportsFileAttributeView(PosixFileAttributeView.class)) { return; }
+        Set<PosixFilePermission> permissions = Files.exists(localPath)
+                ? Files.getPosixFilePermissions(localPath) : PosixFilePermissions.fromString("rw-r--r--");
+        Files.setPosixFilePermissions(partialPath, permissions);
+    }
+
+    /** Write the buffered data at its position in the file, then sync and report progress. */
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        int bytesWritten = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        if (bytesWritten == 0) { return; }
+
+        unsyncedBytes += bytesWritten;
+        if (settings.syncPolicy == SyncPolicy.PERIODIC && unsyncedBytes >= SyncPolicy.PERIODIC_SYNC_BYTES) {
+            channel.force(false);
+            unsyncedBytes = 0;
+        }
+        if (settings.progressListener != null) {
+            settings.progressListener.onProgress(localFile.getName(), position, fileSize, System.nanoTime() - startNanos);
+        }
+    }
+}
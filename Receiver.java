@@ -1,9 +1,16 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 
 /**
  * A Receiver lets the application wait for incoming data from a {@link Socket} connection.
+ * Chat messages are printed out, long messages once all of their chunks arrived, and file transfer
+ * frames are handed to the {@link MultiplexedStreams} of the connection, starting a
+ * {@link MultiplexedFileHandler} when the server requests one of our files.
  * Receiver also implements the {@link Runnable} interface which means that, if desired, the
  * Receiver can be wrapped with a {@link Thread} object to execute on a separate thread.
  *
@@ -13,15 +20,20 @@ import java.net.Socket;
 public class Receiver implements Runnable {
 
     private final Socket clientSocket;
+    private final MultiplexedStreams streams;
+    /** The chunks received so far of long messages, keyed by the message id the server chose. */
+    private final HashMap<Integer, ByteArrayOutputStream> partialMessages = new HashMap<>();
 
     /**
      * Creates a Receiver that uses the supplied Socket to wait/receive
      * messages and print them to the stdout.
      *
      * @param clientSocket the active {@link Socket} connection object.
+     * @param streams the stream table for file transfers multiplexed over the connection.
      */
-    public Receiver(Socket clientSocket) {
+    public Receiver(Socket clientSocket, MultiplexedStreams streams) {
         this.clientSocket = clientSocket;
+        this.streams = streams;
     }
 
     /**
@@ -34,11 +46,55 @@ public class Receiver implements Runnable {
     public void run() {
         try {
             // Input stream to read in data from the socket connection.
-            DataInputStream socketIn = new DataInputStream(clientSocket.getInputStream());
+            DataInputStream socketIn = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
 
-            while (true) { // Read in loop waiting to receive data:
-                String message = socketIn.readUTF();
-                System.out.println(message);
+            while (true) { // Read in loop waiting to receive frames:
+                int streamId;
+                FrameType type = FrameType.fromByte(socketIn.readUnsignedByte());
+                switch (type) {
+                    case MESSAGE:
+                        System.out.println(socketIn.readUTF());
+                        break;
+                    case FILE_OPEN: // The server is requesting one of our files:
+                        streamId = socketIn.readInt();
+                        socketIn.readUTF(); // The owner is always us.
+                        String filename = socketIn.readUTF();
+                        BlockSignatures signatures = BlockSignatures.readOptional(socketIn);
+                        new Thread(new MultiplexedFileHandler(streams, streamId, filename, signatures)).start();
+                        break;
+                    case FILE_DATA:
+                        streamId = socketIn.readInt();
+                        streams.receiveData(streamId, readFileData(socketIn));
+                        break;
+                    case FILE_CREDIT:
+                        streamId = socketIn.readInt();
+                        streams.receiveCredit(streamId, socketIn.readInt());
+                        break;
+                    case FILE_END:
+                        streams.receiveEnd(socketIn.readInt());
+                        break;
+                    case FILE_CANCEL:
+                        streams.receiveCancel(socketIn.readInt());
+                        break;
+                    case PING: // The server is checking we are still alive:
+                        streams.getFrameOutput().writePong();
+                        break;
+                    case PONG:
+                        break;
+                    case SEARCH_RESULTS:
+                        printSearchResults(socketIn);
+                        break;
+                    case MESSAGE_CHUNK:
+                        int messageId = socketIn.readInt();
+                        int flags = socketIn.readUnsignedByte();
+                        receiveMessageChunk(messageId, flags, readFileData(socketIn));
+                        break;
+                    case CATALOG_ADD: // Only sent to the server.
+                    case CATALOG_REMOVE:
+                    case CATALOG_SYNCED:
+                    case SEARCH:
+                        throw new IOException("Unexpected " + type + " frame");
+                }
             }
         } catch (IOException e) {
             System.exit(0); // Other side of the socket shutdown. Time to exit.
@@ -47,4 +103,63 @@ public class Receiver implements Runnable {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Add a chunk to its long message, and print the message once it is complete. Chunks of a message
+     * that started before we joined are ignored.
+     *
+     * @param messageId the id of the message.
+     * @param flags the chunk flags, see {@link FrameOutput#CHUNK_FIRST}.
+     * @param data the piece of the message.
+     */
+    private void receiveMessageChunk(int messageId, int flags, byte[] data) {
+        if ((flags & FrameOutput.CHUNK_FIRST) != 0) {
+            partialMessages.put(messageId, new ByteArrayOutputStream());
+        }
+        ByteArrayOutputStream message = partialMessages.get(messageId);
+        if (message == null) { return; }
+
+        if ((flags & FrameOutput.CHUNK_ABORT) != 0) {
+            partialMessages.remove(messageId);
+            return;
+        }
+        message.write(data, 0, data.length);
+        if ((flags & FrameOutput.CHUNK_LAST) != 0) {
+            partialMessages.remove(messageId);
+            System.out.println(new String(message.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Read the results of a shared file search and print them out.
+     *
+     * @param socketIn the input stream of the chat connection.
+     * @throws IOException if an I/O exception occurs.
+     */
+    private static void printSearchResults(DataInputStream socketIn) throws IOException {
+        int count = socketIn.readInt();
+        System.out.println("Found " + count + " shared file(s):");
+        for (int i = 0; i < count; i++) {
+            String owner = socketIn.readUTF();
+            SharedFile file = SharedFile.read(socketIn);
+            System.out.println("  " + owner + ": " + file.name + " (" + file.size + " bytes) " + file.hash);
+        }
+    }
+
+    /**
+     * Read the length prefixed payload of a file data or message chunk frame.
+     *
+     * @param socketIn the input stream of the chat connection.
+     * @return the frame payload.
+     * @throws IOException if an I/O exception occurs or the length is invalid.
+     */
+    public static byte[] readFileData(DataInputStream socketIn) throws IOException {
+        int length = socketIn.readInt();
+        if (length < 0 || length > FrameOutput.MAX_DATA_LENGTH) {
+            throw new IOException("Invalid data frame length: " + length);
+        }
+        byte[] data = new byte[length];
+        socketIn.readFully(data);
+        return data;
+    }
 }
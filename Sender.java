@@ -1,14 +1,15 @@
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A Sender accepts input from the user with standard input to carry out different operations
  * such as (message, file request, and exit). Messages are sent over a socket {@link Socket}
  * connection, and files requests are carried out on a separate thread with the {@link FileRequester}
- * class. Sender also implements the {@link Runnable} interface which means that, if desired,
- * the Sender can be wrapped with a {@link Thread} object to execute on a separate thread.
+ * class, either over a new file transfer connection or multiplexed over the chat connection. Sender
+ * also implements the {@link Runnable} interface which means that, if desired, the Sender can be
+ * wrapped with a {@link Thread} object to execute on a separate thread.
  *
  * @see Runnable
  * @see FileRequester
@@ -17,24 +18,35 @@ import java.net.Socket;
 public class Sender implements Runnable {
 
     private final Socket clientSocket;
+    private final MultiplexedStreams streams;
+    private final boolean multiplexFiles;
     private final InetAddress fileServerAddress;
     private final int fileServerPort;
     private final BufferedReader stdinBuffer;
+    private final DownloadSettings downloadSettings;
 
     /**
      * Creates a Sender that uses user input from stdin to carry out operations
      * for messages and file transfer over socket connections.
      *
      * @param clientSocket the active {@link Socket} connection object for text messages.
+     * @param streams the stream table of the chat connection.
+     * @param multiplexFiles true to request files over the chat connection instead of new connections.
      * @param fileServerAddress the remote IP address of the chat server address for file transfer.
      * @param fileServerPort the port number of the remote chat server socket for file transfer.
      * @param stdinBuffer a standard input buffer reader to get input from the user line-by-line.
+     * @param downloadSettings how requested files are written locally.
      */
-    public Sender(Socket clientSocket, InetAddress fileServerAddress, int fileServerPort, BufferedReader stdinBuffer) {
+    public Sender(Socket clientSocket, MultiplexedStreams streams, boolean multiplexFiles,
+                  InetAddress fileServerAddress, int fileServerPort, BufferedReader stdinBuffer,
+                  DownloadSettings downloadSettings) {
         this.clientSocket = clientSocket;
+        this.streams = streams;
+        this.multiplexFiles = multiplexFiles;
         this.fileServerAddress = fileServerAddress;
         this.fileServerPort = fileServerPort;
         this.stdinBuffer = stdinBuffer;
+        this.downloadSettings = downloadSettings;
     }
 
     /**
@@ -43,10 +55,10 @@ public class Sender implements Runnable {
     @Override
     public void run() {
         try {
-            // Output stream for sending data over the socket connection.
-            DataOutputStream socketOut = new DataOutputStream(clientSocket.getOutputStream());
+            // Frame output for sending data over the socket connection.
+            FrameOutput socketOut = streams.getFrameOutput();
 
-            String operation, message, filename, fileOwner;
+            String operation, message, filename, fileOwner, localFilename, query;
             while (true) { // User input operations loop:
                 displayMenuOptions();
 
@@ -57,18 +69,39 @@ public class Sender implements Runnable {
                     System.out.println("Enter your message:");
                     if ((message = stdinBuffer.readLine()) == null) { break; }
 
-                    socketOut.writeUTF(message);
+                    // The server aborts messages over the limit, so refuse them here. Only long messages are encoded.
+                    if (message.length() > FrameOutput.MAX_MESSAGE_LENGTH / 3
+                            && message.getBytes(StandardCharsets.UTF_8).length > FrameOutput.MAX_MESSAGE_LENGTH) {
+                        System.out.println("Message not sent, messages can be at most "
+                                + (FrameOutput.MAX_MESSAGE_LENGTH / (1024 * 1024)) + "MB.");
+                        continue;
+                    }
+                    socketOut.writeMessage(message);
 //                    System.out.println("Sending Message: " + message); //! DEBUG
                 } else if (operation.equalsIgnoreCase("f")) { // File transfer operation:
                     System.out.println("Who owns the file?");
                     if ((fileOwner = stdinBuffer.readLine()) == null) { break; }
                     System.out.println("Which file do you want?");
                     if ((filename = stdinBuffer.readLine()) == null) { break; }
+                    localFilename = filename;
+                    if (fileOwner.equals(FileTransferRequest.ANY_OWNER)) { // Requested by hash, so we need a name:
+                        System.out.println("Save it as?");
+                        if ((localFilename = stdinBuffer.readLine()) == null) { break; }
+                    }
 
                     // Create separate thread to carry out making the file request and writing the file locally:
-                    Thread fileRequest = new Thread(new FileRequester(fileServerAddress, fileServerPort, fileOwner, filename));
+                    FileRequester fileRequester = multiplexFiles
+                            ? new FileRequester(streams, fileOwner, filename, localFilename, downloadSettings)
+                            : new FileRequester(fileServerAddress, fileServerPort, fileOwner, filename, localFilename,
+                                                downloadSettings);
+                    Thread fileRequest = new Thread(fileRequester);
                     fileRequest.start();
 //                    System.out.println("Requesting File {" + fileOwner +"}: " + filename); // DEBUG
+                } else if (operation.equalsIgnoreCase("s")) { // Shared file search operation:
+                    System.out.println("What file name are you looking for?");
+                    if ((query = stdinBuffer.readLine()) == null) { break; }
+
+                    socketOut.writeSearch(query); // The receiver prints the results when they arrive.
                 }
             }
 
@@ -85,9 +118,10 @@ public class Sender implements Runnable {
 
     /** Prints message to show navigation menu options. */
     public static void displayMenuOptions() {
-        System.out.println("Enter an option ('m', 'f', 'x'):\n" +
+        System.out.println("Enter an option ('m', 'f', 's', 'x'):\n" +
                            "  (M)essage (send)\n" +
-                           "  (F)ile (request)\n" +
+                           "  (F)ile (request, owner '" + FileTransferRequest.ANY_OWNER + "' to request by hash)\n" +
+                           "  (S)earch (shared files)\n" +
                            " e(X)it");
     }
 }
@@ -1,11 +1,15 @@
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 
 /**
  * A ServerClientHandler lets the application wait for incoming messages from a {@link Socket} connection,
- * then forwards messages to other clients connected to the chat server. The ServerClientHandler also
+ * then forwards messages to other clients connected to the chat server. File transfer frames multiplexed
+ * over the connection are routed through a {@link FileStreamRelay}. Long messages are forwarded one chunk
+ * at a time as they arrive, without holding the whole message on the server. The ServerClientHandler also
  * implements the {@link Runnable} interface which allows it to be wrapped with a {@link Thread} object
  * to execute on a separate thread. Having each client handler running on a separate thread lets the chat
  * server support and manage many chat users simultaneously.
@@ -15,19 +19,42 @@ import java.net.Socket;
  */
 public class ServerClientHandler implements Runnable {
 
+    /** The maximum number of shared files returned for one search. */
+    private static final int SEARCH_LIMIT = 50;
+    /** The maximum number of long messages a client may be sending at once. */
+    private static final int MAX_OPEN_MESSAGES = 16;
+
+    private final ClientDetails client;
     private final Socket clientSocket;
     private final String clientUsername;
+    /** Long messages the client is sending, keyed by the message id the client chose. Only used by this thread. */
+    private final HashMap<Integer, OpenMessage> openMessages = new HashMap<>();
+
+    /** A long message being forwarded to the other clients. */
+    private static class OpenMessage {
+        /** The message id used when forwarding the chunks. */
+        final int forwardId = FrameOutput.newMessageId();
+        /** The number of bytes forwarded so far. */
+        long length = 0;
+        /** True once the message was abandoned, its remaining chunks are skipped. */
+        boolean aborted = false;
+    }
+
+    /** Writes a frame to one recipient of a broadcast. */
+    private interface RecipientWrite {
+        void write(FrameOutput out) throws IOException;
+    }
 
     /**
-     * Creates ServerClientHandler that uses the supplied Socket to receive messages from
+     * Creates ServerClientHandler that uses the supplied client connection to receive messages from
      * the user, then forwards the messages to the other clients.
      *
-     * @param clientSocket the active {@link Socket} connection object.
-     * @param clientUsername the chat client username.
+     * @param client the details of the chat client, including its active {@link Socket} connection.
      */
-    public ServerClientHandler(Socket clientSocket, String clientUsername) {
-        this.clientSocket = clientSocket;
-        this.clientUsername = clientUsername;
+    public ServerClientHandler(ClientDetails client) {
+        this.client = client;
+        this.clientSocket = client.socket;
+        this.clientUsername = client.username;
     }
 
     /**
@@ -41,50 +68,205 @@ public class ServerClientHandler implements Runnable {
     public void run() {
         try {
             // Input stream to read in data from the socket connection.
-            DataInputStream socketIn = new DataInputStream(clientSocket.getInputStream());
-
-            while (true) { // Read in loop waiting to receive messages:
-                String message = socketIn.readUTF();
-                System.out.println(clientUsername + ": " + message); //! DEBUG
-                // Block thread execution to avoid race condition on shared client list.
-                synchronized (ChatServer.connectedClients) {
-                    // Retransmit the message to each connected client, but NOT back to the original sender:
-                    for (Socket recipientSocket : ChatServer.connectedClients) {
-                        if (!recipientSocket.equals(clientSocket) && recipientSocket.isConnected()) {
-                            try {
-                                DataOutputStream recipientOut = new DataOutputStream(recipientSocket.getOutputStream());
-                                recipientOut.writeUTF(clientUsername + ": " + message);
-                            } catch (Exception e) { // Catch so the client doesn't crash when one recipient fails.
-                                System.out.println(e.getMessage());
-                            }
+            DataInputStream socketIn = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+
+            while (true) { // Read in loop waiting to receive frames:
+                int streamId;
+                FileStreamRelay relay;
+                FrameType type = FrameType.fromByte(socketIn.readUnsignedByte());
+                client.recordActivity(); // Any frame proves the client is alive.
+                switch (type) {
+                    case MESSAGE:
+                        broadcast(socketIn.readUTF());
+                        break;
+                    case FILE_OPEN: // The client is requesting a file from another client:
+                        streamId = socketIn.readInt();
+                        String fileOwner = socketIn.readUTF();
+                        String filename = socketIn.readUTF();
+                        BlockSignatures signatures = BlockSignatures.readOptional(socketIn);
+                        relay = FileStreamRelay.forChatRequester(client, streamId);
+                        if (ChatServer.admissionControl.admitFileRequest(client.address)) {
+                            relay.open(fileOwner, filename, signatures);
+                        } else { // Requesting files too often.
+                            relay.reject();
                         }
-                    }
+                        break;
+                    case FILE_DATA: // The client is sending data for one of its files:
+                        streamId = socketIn.readInt();
+                        byte[] data = Receiver.readFileData(socketIn);
+                        if ((relay = ownedStream(streamId)) != null) { relay.ownerData(data); }
+                        break;
+                    case FILE_END:
+                        streamId = socketIn.readInt();
+                        if ((relay = ownedStream(streamId)) != null) { relay.ownerEnd(); }
+                        break;
+                    case FILE_CREDIT: // The client consumed data of a file it requested:
+                        streamId = socketIn.readInt();
+                        int credit = socketIn.readInt();
+                        if ((relay = requestedStream(streamId)) != null) { relay.requesterCredit(credit); }
+                        break;
+                    case FILE_CANCEL:
+                        streamId = socketIn.readInt();
+                        if ((relay = requestedStream(streamId)) != null) { relay.requesterCancel(); }
+                        break;
+                    case PING:
+                        client.out.writePong();
+                        break;
+                    case PONG: // Answer to our heartbeat ping, the activity is already recorded.
+                        break;
+                    case CATALOG_ADD: // The client's shared files changed:
+                        ChatServer.fileCatalog.add(clientUsername, SharedFile.read(socketIn));
+                        break;
+                    case CATALOG_REMOVE:
+                        ChatServer.fileCatalog.remove(clientUsername, socketIn.readUTF());
+                        break;
+                    case CATALOG_SYNCED: // The client finished a rescan of its shared files:
+                        ChatServer.fileCatalog.synced(clientUsername, socketIn.readBoolean());
+                        break;
+                    case SEARCH:
+                        client.out.writeSearchResults(ChatServer.fileCatalog.search(socketIn.readUTF(), SEARCH_LIMIT));
+                        break;
+                    case SEARCH_RESULTS: // Only sent by the server.
+                        throw new IOException("Unexpected search results frame");
+                    case MESSAGE_CHUNK: // A piece of a long message:
+                        int messageId = socketIn.readInt();
+                        int flags = socketIn.readUnsignedByte();
+                        forwardMessageChunk(messageId, flags, Receiver.readFileData(socketIn));
+                        break;
                 }
             }
         } catch (IOException e) {
             // Client shutdown the socket connection to the chat server. Remove client from list and exit handler thread:
-            // Synchronize and block thread execution to avoid race condition on shared client list.
-            synchronized (ChatServer.connectedClients) { // Block thread execution to avoid race condition on shared client list.
-                ChatServer.connectedClients.remove(clientSocket);
-            }
-            synchronized (ChatServer.clientFileServers) { // Block thread execution to avoid race condition on shared client list.
-                ChatServer.clientFileServers.remove(clientUsername);
-            }
+            removeClient();
         } catch (Exception e) {
             // Always properly close socket and remove dead connections from the list before exiting the thread:
-            // Synchronize and block thread execution to avoid race condition on shared client list.
             try {
-                synchronized (ChatServer.connectedClients) {
-                    ChatServer.connectedClients.remove(clientSocket);
-                }
-                synchronized (ChatServer.clientFileServers) {
-                    ChatServer.clientFileServers.remove(clientUsername);
-                }
+                removeClient();
 
                 clientSocket.shutdownInput();
                 clientSocket.close();
             } catch (IOException ignored) { }
-            System.out.println(e.getMessage());
+            ChatServer.log.warn(clientUsername + " handler failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retransmit the message to each connected client, but NOT back to the original sender.
+     *
+     * @param message the message received from the client.
+     */
+    private void broadcast(String message) {
+        if (ChatServer.log.isEnabled(LogLevel.DEBUG)) { ChatServer.log.debug(clientUsername + ": " + message); }
+        String forwarded = clientUsername + ": " + message;
+        sendToOthers(out -> out.writeMessage(forwarded));
+    }
+
+    /**
+     * Forward a chunk of a long message to the other clients as soon as it arrives. The forwarded message
+     * starts with the sender's name, and is aborted if it grows past {@link FrameOutput#MAX_MESSAGE_LENGTH}.
+     *
+     * @param messageId the message id chosen by the client.
+     * @param flags the chunk flags, see {@link FrameOutput#CHUNK_FIRST}.
+     * @param data the piece of the message.
+     * @throws IOException if the client breaks the chunk protocol.
+     */
+    private void forwardMessageChunk(int messageId, int flags, byte[] data) throws IOException {
+        OpenMessage message = openMessages.get(messageId);
+        if ((flags & FrameOutput.CHUNK_FIRST) != 0) {
+            if (message != null || openMessages.size() >= MAX_OPEN_MESSAGES) {
+                throw new IOException("Too many open messages from " + clientUsername);
+            }
+            message = new OpenMessage();
+            openMessages.put(messageId, message);
+            broadcastChunk(message.forwardId, FrameOutput.CHUNK_FIRST,
+                    (clientUsername + ": ").getBytes(StandardCharsets.UTF_8));
+        } else if (message == null) {
+            throw new IOException("Message chunk for unknown message " + messageId + " from " + clientUsername);
+        }
+
+        boolean finished = (flags & (FrameOutput.CHUNK_LAST | FrameOutput.CHUNK_ABORT)) != 0;
+        if (finished) { openMessages.remove(messageId); }
+        if (message.aborted) { return; }
+
+        message.length += data.length;
+        if ((flags & FrameOutput.CHUNK_ABORT) != 0 || message.length > FrameOutput.MAX_MESSAGE_LENGTH) {
+            message.aborted = true;
+            broadcastChunk(message.forwardId, FrameOutput.CHUNK_ABORT, new byte[0]);
+            return;
+        }
+        broadcastChunk(message.forwardId, flags & FrameOutput.CHUNK_LAST, data);
+        if (finished && ChatServer.log.isEnabled(LogLevel.DEBUG)) {
+            ChatServer.log.debug(clientUsername + ": <long message, " + message.length + " bytes>");
+        }
+    }
+
+    /**
+     * Send a message chunk to the other clients, split into pieces if it is longer than a frame allows.
+     * The first flag goes on the first piece, and the last and abort flags on the last piece.
+     */
+    private void broadcastChunk(int forwardId, int flags, byte[] data) {
+        int offset = 0;
+        do {
+            int length = Math.min(FrameOutput.MAX_DATA_LENGTH, data.length - offset);
+            int pieceFlags = (offset == 0 ? flags & FrameOutput.CHUNK_FIRST : 0)
+                    | (offset + length == data.length ? flags & ~FrameOutput.CHUNK_FIRST : 0);
+            int pieceOffset = offset;
+            sendToOthers(out -> out.writeMessageChunk(forwardId, pieceFlags, data, pieceOffset, length));
+            offset += length;
+        } while (offset < data.length);
+    }
+
+    /**
+     * Write a frame to each connected client, but NOT back to the original sender. A recipient we fail to
+     * write to is disconnected, so it stops costing a failed write on every later message.
+     *
+     * @param write writes the frame to one recipient.
+     */
+    private void sendToOthers(RecipientWrite write) {
+        // Block thread execution to avoid race condition on shared client list.
+        synchronized (ChatServer.connectedClients) {
+            for (ClientDetails recipient : ChatServer.connectedClients) {
+                if (recipient != client && !recipient.socket.isClosed()) {
+                    try {
+                        write.write(recipient.out);
+                    } catch (Exception e) { // Catch so the client doesn't crash when one recipient fails.
+                        ChatServer.log.warn("Dropping " + recipient.username + ": " + e.getMessage());
+                        recipient.disconnect();
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the relay for a stream opened to this client as the file owner, or null if it is closed. */
+    private FileStreamRelay ownedStream(int streamId) {
+        synchronized (client.ownedStreams) {
+            return client.ownedStreams.get(streamId);
+        }
+    }
+
+    /** @return the relay for a stream this client requested, or null if it is closed. */
+    private FileStreamRelay requestedStream(int streamId) {
+        synchronized (client.requestedStreams) {
+            return client.requestedStreams.get(streamId);
+        }
+    }
+
+    /** Remove the client from the shared client lists, close its socket, and close any file streams it was part of. */
+    private void removeClient() {
+        // Synchronize and block thread execution to avoid race condition on shared client list.
+        synchronized (ChatServer.connectedClients) {
+            ChatServer.connectedClients.remove(client);
+        }
+        synchronized (ChatServer.clientFileServers) {
+            ChatServer.clientFileServers.remove(clientUsername, client);
+        }
+        ChatServer.fileCatalog.removeOwner(clientUsername);
+        client.disconnect(); // Also stops the heartbeat monitor from checking the client.
+        FileStreamRelay.disconnectAll(client);
+        for (OpenMessage message : openMessages.values()) { // The rest of these messages will never arrive.
+            if (!message.aborted) { broadcastChunk(message.forwardId, FrameOutput.CHUNK_ABORT, new byte[0]); }
         }
+        openMessages.clear();
     }
 }
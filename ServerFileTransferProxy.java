@@ -1,3 +1,4 @@
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -9,17 +10,22 @@ import java.net.Socket;
  * connection then forwarding the response data back to the requesting client. The ServerFileTransferProxy also
  * implements the {@link Runnable} interface which allows it to be wrapped with a {@link Thread} object
  * to execute on a separate thread. Having each transfer running on a separate thread lets the chat
- * server support and manage many file transfer requests simultaneously.
+ * server support and manage many file transfer requests simultaneously. When the file was requested as a
+ * multiplexed stream, the response data is written to the bridge stream of a {@link FileStreamRelay} instead.
  *
  * @see Runnable
  * @author Aiden Vandekerckhove
  */
 public class ServerFileTransferProxy implements Runnable {
 
-    /** The active socket of the requesting client. */
+    /** The active socket of the requesting client, or null when forwarding to a multiplexed stream. */
     private final Socket clientSocket;
+    /** The relay of the multiplexed stream requesting the file, or null when forwarding to a socket. */
+    private final FileStreamRelay relay;
     /** The name of the requested file. */
     private final String filename;
+    /** The block signatures of the requester's existing copy of the file, or null. */
+    private final BlockSignatures signatures;
 
     /** The remote IP address of the client that owns the file. */
     private final InetAddress ownerAddress;
@@ -32,12 +38,36 @@ public class ServerFileTransferProxy implements Runnable {
      *
      * @param clientSocket the active socket of the requesting client.
      * @param filename the name of the requested file.
+     * @param signatures the block signatures of the requester's existing copy of the file, or null.
      * @param ownerAddress the remote IP address of the client that owns the file.
      * @param ownerListenPort the port number of the owner client's socket for file transfer.
      */
-    public ServerFileTransferProxy(Socket clientSocket, String filename, InetAddress ownerAddress, int ownerListenPort) {
+    public ServerFileTransferProxy(Socket clientSocket, String filename, BlockSignatures signatures,
+                                   InetAddress ownerAddress, int ownerListenPort) {
         this.clientSocket = clientSocket;
+        this.relay = null;
         this.filename = filename;
+        this.signatures = signatures;
+        this.ownerAddress = ownerAddress;
+        this.ownerListenPort = ownerListenPort;
+    }
+
+    /**
+     *  Creates a ServerFileTransferProxy that contacts the owner to request the file then relays
+     *  the response data back to the requesting client as a multiplexed stream.
+     *
+     * @param relay the relay of the multiplexed stream requesting the file.
+     * @param filename the name of the requested file.
+     * @param signatures the block signatures of the requester's existing copy of the file, or null.
+     * @param ownerAddress the remote IP address of the client that owns the file.
+     * @param ownerListenPort the port number of the owner client's socket for file transfer.
+     */
+    public ServerFileTransferProxy(FileStreamRelay relay, String filename, BlockSignatures signatures,
+                                   InetAddress ownerAddress, int ownerListenPort) {
+        this.clientSocket = null;
+        this.relay = relay;
+        this.filename = filename;
+        this.signatures = signatures;
         this.ownerAddress = ownerAddress;
         this.ownerListenPort = ownerListenPort;
     }
@@ -51,12 +81,16 @@ public class ServerFileTransferProxy implements Runnable {
         try {
             ownerSocket = new Socket(ownerAddress, ownerListenPort); // Connect to the owners file handler socket.
             // File owner input & output streams to send and receive data from the socket connection.
-            DataOutputStream ownerSocketOut = new DataOutputStream(ownerSocket.getOutputStream());
+            DataOutputStream ownerSocketOut = new DataOutputStream(new BufferedOutputStream(ownerSocket.getOutputStream()));
             DataInputStream ownerSocketIn = new DataInputStream(ownerSocket.getInputStream());
             ownerSocketOut.writeUTF(filename); // Send requested file name.
+            BlockSignatures.writeOptional(signatures, ownerSocketOut); // Send the requester's existing copy, if any.
+            ownerSocketOut.flush();
 
             // Open requesting client output stream and forward the file size:
-            DataOutputStream clientSocketOut = new DataOutputStream(clientSocket.getOutputStream());
+            DataOutputStream clientSocketOut = (relay != null)
+                    ? new DataOutputStream(new BufferedOutputStream(relay.getBridge(), FrameOutput.MAX_DATA_LENGTH))
+                    : new DataOutputStream(clientSocket.getOutputStream());
             long fileSize = ownerSocketIn.readLong();
             clientSocketOut.writeLong(fileSize);
 
@@ -69,22 +103,32 @@ public class ServerFileTransferProxy implements Runnable {
                 clientSocketOut.write(dataBuffer, 0, bytesReceived);
             }
 //            System.out.println("Done! Total bytes sent: " + total); //! DEBUG
+            clientSocketOut.flush();
+            ownerSocket.close();
 
-            clientSocket.shutdownOutput();
-            clientSocket.close();
+            closeClient();
         } catch (IOException e) {
             // Always properly close socket and remove dead connections from the list before exiting the thread:
-            try {
-                clientSocket.shutdownOutput();
-                clientSocket.close();
-            } catch (IOException ignored) { }
+            closeClient();
         } catch (Exception e) {
             // Always properly close socket and remove dead connections from the list before exiting the thread:
-            try {
+            closeClient();
+            ChatServer.log.warn("File transfer proxy failed: " + e.getMessage());
+        }
+    }
+
+    /** Close the requesting client's socket, or end its multiplexed stream. */
+    private void closeClient() {
+        try {
+            if (relay != null) {
+                relay.getBridge().close();
+            } else {
                 clientSocket.shutdownOutput();
                 clientSocket.close();
-            } catch (IOException ignored) { }
-            System.out.println(e.getMessage());
+            }
+        } catch (IOException ignored) {
+        } finally {
+            if (relay != null) { relay.bridgeFinished(); }
         }
     }
 }
@@ -0,0 +1,231 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ServerLog takes log records off the threads forwarding messages and file data. Handler threads
+ * only drop a record into a bounded lock-free ring buffer, and a background writer thread drains the
+ * buffer in batches into a log file, which is rotated once it grows too large. Records below the
+ * minimum level are skipped before anything is allocated, and when the buffer is full the record is
+ * dropped and counted instead of making the handler wait. ServerLog also implements the {@link Runnable}
+ * interface, which is the writer thread started by {@link #start()}.
+ *
+ * @see LogLevel
+ * @see ChatServer
+ */
+public class ServerLog implements Runnable {
+
+    private static final int BUFFER_SIZE = 8192; // Must be a power of two.
+    private static final int MAX_BATCH = 512;
+    /** How long the writer sleeps when the buffer is empty. */
+    private static final long IDLE_PARK_NANOS = 20_000_000L;
+    private static final long MAX_FILE_BYTES = 10L * 1024 * 1024;
+    /** The number of rotated files kept as {@code <file>.1} (newest) to {@code <file>.<n>}. */
+    private static final int ROTATED_FILES = 5;
+
+    private final File logFile;
+    private final LogLevel minimumLevel;
+
+    /* A bounded multi-producer ring buffer: a slot's sequence equals the producer position when it is free,
+       and the position + 1 once the record is published, then the writer frees it for the next lap. */
+    private final Object[] records = new Object[BUFFER_SIZE];
+    private final AtomicLongArray sequences = new AtomicLongArray(BUFFER_SIZE);
+    private final AtomicLong producerPosition = new AtomicLong();
+    /** Only touched by the writer thread. */
+    private long consumerPosition = 0;
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private volatile Thread writerThread;
+    private volatile boolean closed = false;
+    private Writer fileWriter;
+    private long fileBytes;
+
+    /** A single log record, formatted by the writer thread. */
+    private static class Record {
+        final long time;
+        final LogLevel level;
+        final String message;
+
+        Record(long time, LogLevel level, String message) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Creates a ServerLog, call {@link #start()} to begin writing.
+     *
+     * @param logFile the file to write to, rotated files are kept next to it.
+     * @param minimumLevel records below this level are skipped.
+     */
+    public ServerLog(File logFile, LogLevel minimumLevel) {
+        this.logFile = logFile;
+        this.minimumLevel = minimumLevel;
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Open the log file and start the writer thread. Records still in the buffer are written
+     * when the application exits.
+     *
+     * @throws IOException if the log file cannot be opened.
+     */
+    public void start() throws IOException {
+        openFile();
+        writerThread = new Thread(this, "server-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /** @return true if records of the level are written, to skip building messages nobody reads. */
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(minimumLevel) >= 0;
+    }
+
+    public void debug(String message) { log(LogLevel.DEBUG, message); }
+
+    public void info(String message) { log(LogLevel.INFO, message); }
+
+    public void warn(String message) { log(LogLevel.WARN, message); }
+
+    public void error(String message) { log(LogLevel.ERROR, message); }
+
+    /**
+     * Add a record to the buffer for the writer thread, never blocking the caller. The record is
+     * dropped if its level is filtered out or the buffer is full.
+     *
+     * @param level the severity of the record.
+     * @param message the text of the record.
+     */
+    public void log(LogLevel level, String message) {
+        if (!isEnabled(level)) { return; }
+
+        long position;
+        while (true) { // Claim a free slot:
+            position = producerPosition.get();
+            long sequence = sequences.get((int) position & (BUFFER_SIZE - 1));
+            if (sequence < position) { // The writer hasn't freed the slot since the last lap, so the buffer is full.
+                droppedRecords.incrementAndGet();
+                return;
+            }
+            if (sequence == position && producerPosition.compareAndSet(position, position + 1)) { break; }
+        }
+        int slot = (int) position & (BUFFER_SIZE - 1);
+        records[slot] = new Record(System.currentTimeMillis(), level, message);
+        sequences.set(slot, position + 1); // Publish the record to the writer.
+        if ((position & (BUFFER_SIZE / 2 - 1)) == 0 && writerThread != null) {
+            LockSupport.unpark(writerThread); // Wake the writer early under load instead of letting the buffer fill.
+        }
+    }
+
+    /**
+     * Execute the writer thread: drain the buffer in batches and write each batch to the log
+     * file with a single flush, sleeping briefly whenever the buffer is empty.
+     */
+    @Override
+    public void run() {
+        StringBuilder batch = new StringBuilder();
+        while (!closed) {
+            if (drain(batch) == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /** Stop the writer thread, then write whatever is left in the buffer and close the file. */
+    public void close() {
+        if (closed) { return; }
+        closed = true;
+        try {
+            if (writerThread != null) { writerThread.join(1000); }
+        } catch (InterruptedException ignored) { }
+        synchronized (this) {
+            StringBuilder batch = new StringBuilder();
+            while (drain(batch) > 0) { }
+            try {
+                if (fileWriter != null) { fileWriter.close(); }
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Take up to {@link #MAX_BATCH} records out of the buffer and write them to the log file.
+     *
+     * @return the number of records taken.
+     */
+    private synchronized int drain(StringBuilder batch) {
+        batch.setLength(0);
+        long dropped = droppedRecords.getAndSet(0);
+        if (dropped > 0) {
+            append(batch, new Record(System.currentTimeMillis(), LogLevel.WARN, dropped + " log records dropped"));
+        }
+
+        int count = 0;
+        while (count < MAX_BATCH) {
+            int slot = (int) consumerPosition & (BUFFER_SIZE - 1);
+            if (sequences.get(slot) != consumerPosition + 1) { break; } // Nothing published yet.
+            Record record = (Record) records[slot];
+            records[slot] = null;
+            sequences.set(slot, consumerPosition + BUFFER_SIZE); // Free the slot for the next lap.
+            consumerPosition++;
+            append(batch, record);
+            count++;
+        }
+        if (batch.length() > 0) { write(batch); }
+        return count;
+    }
+
+    private void append(StringBuilder batch, Record record) {
+        batch.append(timestampFormat.format(new Date(record.time))).append(' ')
+             .append(record.level).append(' ')
+             .append(record.message).append(System.lineSeparator());
+    }
+
+    /** Write a batch to the log file, rotating the file first if it grew too large. */
+    private void write(StringBuilder batch) {
+        if (fileWriter == null) { return; } // The file couldn't be reopened, the records are lost.
+        try {
+            if (fileBytes >= MAX_FILE_BYTES) { rotate(); }
+            fileWriter.write(batch.toString());
+            fileWriter.flush();
+            fileBytes += batch.length();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /** Shift the rotated files up by one, dropping the oldest, and start a new log file. */
+    private void rotate() throws IOException {
+        fileWriter.close();
+        fileWriter = null;
+        for (int i = ROTATED_FILES - 1; i >= 1; i--) {
+            File older = new File(logFile.getPath() + "." + i);
+            if (older.exists()) {
+                File newer = new File(logFile.getPath() + "." + (i + 1));
+                newer.delete();
+                older.renameTo(newer);
+            }
+        }
+        File newest = new File(logFile.getPath() + ".1");
+        newest.delete();
+        logFile.renameTo(newest);
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        fileWriter = new BufferedWriter(new FileWriter(logFile, true));
+        fileBytes = logFile.length();
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The SharedFile class defines an entry in a chat client's catalog of shared files. Entries are sent
+ * as catalog frames over the chat connection when the shared files change, and as search results.
+ *
+ * @see SharedFileCatalog
+ * @see FileCatalogIndex
+ */
+public class SharedFile implements java.io.Serializable {
+
+    /** The longest file name a catalog entry may have, so the server's memory per entry is bounded. */
+    public static final int MAX_NAME_LENGTH = 1024;
+    /** The length of a hex encoded SHA-256 hash. */
+    private static final int HASH_LENGTH = 64;
+
+    /** The path of the file relative to the owner's shared directory, with {@code /} separators. */
+    public final String name;
+    /** The file size in bytes. */
+    public final long size;
+    /** The file's last modified time in milliseconds since the epoch. */
+    public final long lastModified;
+    /** The hex encoded SHA-256 hash of the file contents. */
+    public final String hash;
+
+    public SharedFile(String name, long size, long lastModified, String hash) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    /**
+     * Write the entry's fields to a frame.
+     *
+     * @param out the output stream to write to.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeUTF(hash);
+    }
+
+    /**
+     * Read an entry written by {@link #write}.
+     *
+     * @param in the input stream to read from.
+     * @return the entry.
+     * @throws IOException if an I/O exception occurs or the name or hash has the wrong length.
+     */
+    public static SharedFile read(DataInputStream in) throws IOException {
+        SharedFile file = new SharedFile(in.readUTF(), in.readLong(), in.readLong(), in.readUTF());
+        if (file.name.length() > MAX_NAME_LENGTH || file.hash.length() != HASH_LENGTH) {
+            throw new IOException("Invalid catalog entry");
+        }
+        return file;
+    }
+}
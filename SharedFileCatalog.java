@@ -0,0 +1,198 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+
+/**
+ * A SharedFileCatalog keeps the catalog of files a chat client shares, which are the readable files in
+ * the current working directory and its subdirectories, named by their path relative to it. The first
+ * scan hashes every file, so it runs on the catalog's own thread after joining instead of holding up the
+ * {@link JoinChatRequest}, and the files it finds are sent as catalog frames. The catalog then periodically
+ * rescans the directory and sends only the added, changed, and removed files, followed by whether the scan
+ * saw every file, which lets the server answer requests for files the catalog doesn't have right away.
+ * File hashes are only recomputed when a file's size or modified time changes. SharedFileCatalog also
+ * implements the {@link Runnable} interface so the rescans can run on a separate thread.
+ *
+ * @see Runnable
+ * @see SharedFile
+ * @see FileCatalogIndex
+ */
+public class SharedFileCatalog implements Runnable {
+
+    /** How often to rescan the shared directory for changes. */
+    private static final long RESCAN_INTERVAL_MILLIS = 10_000;
+
+    private final File directory;
+    private FrameOutput frameOut;
+    /** The catalog as the server last saw it, keyed by file name. */
+    private HashMap<String, SharedFile> files = new HashMap<>();
+    /** False if the last scan skipped files, because there were too many or part of the tree couldn't be read. */
+    private boolean complete = true;
+
+    /**
+     * Creates an empty SharedFileCatalog for the files in a directory, the first scan happens in {@link #run()}.
+     *
+     * @param directory the shared directory.
+     */
+    public SharedFileCatalog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Set the frame output to send catalog updates to, once the chat connection is joined.
+     *
+     * @param frameOut the {@link FrameOutput} of the chat connection.
+     */
+    public synchronized void setFrameOutput(FrameOutput frameOut) {
+        this.frameOut = frameOut;
+    }
+
+    /** Scan the shared directory now and then forever, sending catalog updates until the connection closes. */
+    @Override
+    @SuppressWarnings("InfiniteLoopStatement")
+    public void run() {
+        try {
+            while (true) {
+                sendUpdates();
+                Thread.sleep(RESCAN_INTERVAL_MILLIS);
+            }
+        } catch (IOException | InterruptedException ignored) { } // The chat connection closed.
+    }
+
+    /**
+     * Rescan the shared directory and send the differences from the last scan to the server, then whether
+     * the catalog now lists every shared file.
+     *
+     * @throws IOException if an I/O exception occurs.
+     */
+    public synchronized void sendUpdates() throws IOException {
+        HashMap<String, SharedFile> scanned = scan();
+        for (SharedFile file : scanned.values()) {
+            if (files.get(file.name) != file) { // New or changed, unchanged entries are reused by scan().
+                frameOut.writeCatalogAdd(file);
+            }
+        }
+        for (String name : files.keySet()) {
+            if (!scanned.containsKey(name)) {
+                frameOut.writeCatalogRemove(name);
+            }
+        }
+        files = scanned;
+        frameOut.writeCatalogSynced(complete);
+    }
+
+    /**
+     * Check a requested file name is in the form a scan names files, a relative path with {@code /}
+     * separators and no empty, {@code .}, or {@code ..} parts. Other names may still refer to a shared file.
+     *
+     * @param name the requested file name.
+     * @return true if a complete scan would have listed the file under this name.
+     */
+    public static boolean isCatalogName(String name) {
+        if (name.isEmpty() || name.indexOf('\\') != -1 || name.indexOf(':') != -1) { return false; }
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Walk the shared directory tree, setting {@link #complete} to whether every file was seen.
+     *
+     * @return the catalog entries for the files currently in the shared directory tree.
+     */
+    private HashMap<String, SharedFile> scan() {
+        HashMap<String, SharedFile> scanned = new HashMap<>();
+        Path root = directory.toPath();
+        complete = true;
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (!attributes.isRegularFile() && !Files.isRegularFile(path)) { // Links are followed to files.
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (scanned.size() >= FileCatalogIndex.MAX_FILES_PER_OWNER) { // The server keeps no more.
+                        complete = false;
+                        return FileVisitResult.TERMINATE;
+                    }
+                    add(scanned, catalogName(root.relativize(path)), path.toFile());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    complete = false; // An unreadable directory, its files can still be requested by name.
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            complete = false;
+        }
+        return scanned;
+    }
+
+    /** Add a file to the scanned catalog if it can be requested, reusing its last hash if it is unchanged. */
+    private void add(HashMap<String, SharedFile> scanned, String name, File file) {
+        if (!file.canRead() || file.length() == 0) { return; } // Not requestable, the owner would send nothing.
+        if (name.endsWith(PartialFileWriter.PARTIAL_SUFFIX)) { return; } // Download in progress.
+        if (name.length() > SharedFile.MAX_NAME_LENGTH) { // Too long for the server, so the catalog is incomplete.
+            complete = false;
+            return;
+        }
+
+        long size = file.length();
+        long lastModified = file.lastModified();
+        SharedFile previous = files.get(name);
+        if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+            scanned.put(name, previous); // Unchanged, reuse the hash.
+            return;
+        }
+        try {
+            scanned.put(name, new SharedFile(name, size, lastModified, hash(file)));
+        } catch (IOException ignored) { } // The file disappeared or became unreadable while scanning.
+    }
+
+    /** @return the catalog name of a path relative to the shared directory, its parts joined with {@code /}. */
+    private static String catalogName(Path relativePath) {
+        StringBuilder name = new StringBuilder();
+        for (Path part : relativePath) {
+            if (name.length() > 0) { name.append('/'); }
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Compute the hex encoded SHA-256 hash of a file.
+     *
+     * @param file the file to hash.
+     * @return the hex encoded hash.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform is required to support SHA-256.
+        }
+
+        int bytesRead;
+        byte[] fileBuffer = new byte[64 * 1024];
+        try (FileInputStream fileInput = new FileInputStream(file)) {
+            while ((bytesRead = fileInput.read(fileBuffer)) != -1) {
+                digest.update(fileBuffer, 0, bytesRead);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A SocketStreamWriter writes file data from a multiplexed owner to a requester that asked for the file
+ * over a separate file transfer connection. Data frames are queued by the owner's {@link ServerClientHandler}
+ * and written to the requester's socket on this thread, so a slow requester never stops the server from
+ * reading the owner's chat connection. Credit is only sent back to the owner as the queue drains, which
+ * keeps the queue within one {@link FrameOutput#STREAM_WINDOW}. SocketStreamWriter also implements the
+ * {@link Runnable} interface so it can run on a separate thread.
+ *
+ * @see FileStreamRelay
+ */
+public class SocketStreamWriter implements Runnable {
+
+    /** Queued after the last data frame when the owner finished sending the file. */
+    private static final byte[] END = new byte[0];
+    /** Queued to wake the writer when the transfer is cancelled. */
+    private static final byte[] CANCEL = new byte[0];
+
+    private final FileStreamRelay relay;
+    private final Socket requesterSocket;
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    /** The number of data bytes queued but not yet written. */
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+
+    /**
+     * Creates a SocketStreamWriter for a single file transfer.
+     *
+     * @param relay the relay to send credit and cancel through.
+     * @param requesterSocket the active socket of the requesting client.
+     */
+    public SocketStreamWriter(FileStreamRelay relay, Socket requesterSocket) {
+        this.relay = relay;
+        this.requesterSocket = requesterSocket;
+    }
+
+    /**
+     * Queue a data frame for the requester without blocking.
+     *
+     * @param data the data frame payload.
+     * @return false if the owner sent more than its credit allows, and the transfer should be cancelled.
+     */
+    public boolean offer(byte[] data) {
+        if (queuedBytes.addAndGet(data.length) > FrameOutput.STREAM_WINDOW) { return false; }
+        queue.add(data);
+        return true;
+    }
+
+    /** Close the requester's connection once the queued data has been written. */
+    public void finish() {
+        queue.add(END);
+    }
+
+    /** Stop writing, queued data is dropped. */
+    public void cancel() {
+        queue.add(CANCEL);
+    }
+
+    /**
+     * Execute SocketStreamWriter functionality to write queued data to the requester's socket, granting the
+     * owner credit for each frame written, until the transfer ends or is cancelled.
+     */
+    @Override
+    public void run() {
+        try {
+            OutputStream socketOut = requesterSocket.getOutputStream();
+            while (true) {
+                byte[] data = queue.take();
+                if (data == CANCEL) { return; }
+                if (data == END) {
+                    requesterSocket.shutdownOutput();
+                    requesterSocket.close();
+                    return;
+                }
+                socketOut.write(data);
+                queuedBytes.addAndGet(-data.length);
+                relay.requesterDrained(data.length);
+            }
+        } catch (IOException e) { // The requester went away, stop the owner from sending any more.
+            relay.requesterCancel();
+        } catch (InterruptedException ignored) {
+            relay.requesterCancel();
+        }
+    }
+}
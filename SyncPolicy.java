@@ -0,0 +1,12 @@
+/** Enum defines when a downloaded file is forced to disk with fsync. */
+public enum SyncPolicy {
+        /** Leave writing the file to disk up to the operating system. */
+        NEVER,
+        /** Force the whole file to disk once, before it replaces the local file. */
+        ON_COMPLETE,
+        /** Force the file to disk every {@link #PERIODIC_SYNC_BYTES} bytes, and once more when complete. */
+        PERIODIC;
+
+    /** How many bytes may be written between syncs with the {@link #PERIODIC} policy. */
+    public static final long PERIODIC_SYNC_BYTES = 64L * 1024 * 1024;
+}
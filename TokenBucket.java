@@ -0,0 +1,46 @@
+/**
+ * A TokenBucket limits how often something may happen while still allowing short bursts. The bucket
+ * holds up to a capacity of tokens and refills at a steady rate, and each action takes one token,
+ * so at most the capacity can happen at once, and after that only as fast as the refill rate.
+ *
+ * @see AdmissionControl
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * Creates a full TokenBucket.
+     *
+     * @param capacity the most tokens the bucket holds, the largest burst allowed.
+     * @param tokensPerSecond how fast the bucket refills.
+     */
+    public TokenBucket(double capacity, double tokensPerSecond) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / 1e9;
+        this.tokens = capacity;
+    }
+
+    /** @return true if a token was taken, false if the bucket is empty and the action should be rejected. */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) { return false; }
+        tokens--;
+        return true;
+    }
+
+    /** @return true if the bucket refilled completely, so forgetting it doesn't change any limit. */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * A TransferProgressListener is notified as a {@link FileRequester} writes a downloaded file, so large
+ * downloads can be monitored. Listeners are called on the downloading thread, so they should return quickly.
+ *
+ * @see PartialFileWriter
+ * @see ConsoleProgressListener
+ */
+public interface TransferProgressListener {
+
+    /**
+     * Called each time another piece of the file has been written.
+     *
+     * @param filename the local name of the file.
+     * @param bytesWritten the number of bytes written so far.
+     * @param totalBytes the size of the complete file.
+     * @param elapsedNanos the time since the download started in nanoseconds.
+     */
+    void onProgress(String filename, long bytesWritten, long totalBytes, long elapsedNanos);
+
+    /**
+     * Called once the complete file has replaced the local file.
+     *
+     * @param filename the local name of the file.
+     * @param totalBytes the size of the file.
+     * @param elapsedNanos the time the download took in nanoseconds.
+     */
+    void onComplete(String filename, long totalBytes, long elapsedNanos);
+}